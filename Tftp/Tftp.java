@@ -3,9 +3,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /**
@@ -16,7 +19,9 @@ import java.nio.file.Paths;
  * This class has public static methods to support operations for Trivial File
  * Transfer between a server and client.
  *
- * The protocol is based on a simplified version of TFTP RFC 1350.
+ * The protocol is based on a simplified version of TFTP RFC 1350. Packets use
+ * the RFC's 2-byte opcode and 2-byte block number fields, so that any standard
+ * TFTP client or server can take part in a transfer.
  *
  * @see     Tftp
  * @see     TftpServer
@@ -27,24 +32,31 @@ public class Tftp {
     public static final String SRC_DIR = "server";
     public static final String OUT_DIR = "client";
     public static final String ENCODING = "ASCII";
+    public static final String MODE = "octet";  /* Binary transfer mode */
+    public static final String NETASCII = "netascii";
 
-    public static final byte RRQ = 1;           /* Request packet */
-    public static final byte DATA = 2;          /* File data packet */
-    public static final byte ACK = 3;           /* Acknowledge packet */
-    public static final byte ERROR = 4;         /* Error message packet */
+    public static final short RRQ = 1;          /* Request packet */
+    public static final short WRQ = 2;          /* Write request packet */
+    public static final short DATA = 3;         /* File data packet */
+    public static final short ACK = 4;          /* Acknowledge packet */
+    public static final short ERROR = 5;        /* Error message packet */
+    public static final short OACK = 6;         /* Option acknowledgement */
 
-    public static final int BUFFER = 512;       /* Standard TFTP Buffer */
-    public static final int LIMIT = 131072;     /* Limit for 1-byte headers */
-    public static final int OFFSET = 1;         /* Offset for 1-byte headers */
+    public static final int BLOCK = 512;        /* Standard TFTP block size */
+    public static final int OFFSET = 2;         /* Offset for 2-byte opcodes */
 
     public static final int HEADER = OFFSET * 2;
-    public static final int BLOCK = BUFFER - HEADER;
+    public static final int BUFFER = BLOCK + HEADER;
+
+    public static final int MAX_BLOCK = 0xFFFF; /* Largest 2-byte block number */
+    public static final int UNKNOWN_TID = 5;    /* Error code of a foreign packet */
+    public static final int ROLLOVER = 0;       /* Block number after MAX_BLOCK */
 
     public static final int PORT = 69;          /* Default listening port */
     public static final int ATTEMPTS = 5;       /* Max tries to send a block */
     public static final int TIMEOUT = 20000;    /* Timeout socket connection */
     public static final int WAIT = 1000;        /* Timeout for response wait */
-    public static final int PAUSE = 50;         /* Power-nap for performance */
+    public static final int CACHE = 64;         /* Megabytes of files cached */
 
     /**
      * Tftp private constructor.
@@ -96,34 +108,106 @@ public class Tftp {
 
 
     /**
-     * Gets the bytes of file that was requested.
+     * Gets the Path that an uploaded file is to be written to.
+     *
+     * The file name comes from the client, so it must stay inside the
+     * directory once resolved, and its folder must exist already, as no
+     * folder is created for an upload.
+     *
+     * @param   directory   The directory the file is written into.
+     * @param   fileName    The file name of the WRQ.
+     * @return  The Path object that represents the file's path.
+     * @throws  IOException if the name leaves the directory, or its folder
+     *          does not exist.
+     */
+    public static Path getUploadPath(Path directory, String fileName) throws IOException {
+
+        Path root = directory.toAbsolutePath().normalize();
+        Path filePath = root.resolve(fileName).normalize();
+        if (fileName.isEmpty() || !filePath.startsWith(root) || filePath.equals(root)) {
+            throw new IOException("Access violation, file name is not allowed.");
+        } else if (!Files.isDirectory(filePath.getParent()) || Files.isDirectory(filePath)) {
+            throw new IOException("Could not resolve the file path.");
+        }
+        return filePath;
+    }
+
+
+    /**
+     * Opens the file that was requested, to be read one block at a time.
+     * There is no limit on the size, as block numbers roll over.
      *
      * @param   filePath   The Path that describes where the file is located.
-     * @return  The array of bytes containing the file, if under the LIMIT.
+     * @return  The TftpSource to read the blocks from.
      * @throws  IOException
      */
-    public static byte[] getFileBytes(Path filePath) throws IOException {
+    public static TftpSource openFile(Path filePath) throws IOException {
 
-        byte[] fileBytes = Files.readAllBytes(filePath);
-        int size = fileBytes.length;
-        if (size < LIMIT) {
-            return fileBytes;
-        } else {
-            throw new IOException("Size exceeded limit " + size + " > " + LIMIT);
-        }
+        return new TftpFile(filePath);
     }
 
 
     /**
      * Calculates total blocks for a file.
      *
+     * A block shorter than the block size ends a transfer (RFC 1350), so the
+     * last block is always short. If the size of the file is a multiple of
+     * the block size, including an empty file, the last block has no file
+     * bytes at all.
+     *
      * @see     #BLOCK
-     * @param   fileSize    The int size, the length of file bytes.
-     * @return  The local path that exists, or newly created.
+     * @param   fileSize    The long size, the length of file bytes.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @return  The long amount of blocks needed to send the file.
+     */
+    public static long getTotalBlocks(long fileSize, int blksize) {
+
+        return fileSize / blksize + 1;
+    }
+
+
+    /**
+     * Calculates the 2-byte block number that is sent for a block.
+     *
+     * Blocks are counted from 1 for the whole transfer. Once the count passes
+     * {@link #MAX_BLOCK}, the number sent rolls over to either 0 or 1, which
+     * are the two conventions used by TFTP implementations.
+     *
+     * @param   sequence    The long count of the block, starting at 1.
+     * @param   rollover    The int block number to roll over to, 0 or 1.
+     * @return  The int block number to put in the packet.
+     */
+    public static int blockNumber(long sequence, int rollover) {
+
+        if (sequence <= MAX_BLOCK) {
+            return (int) sequence;
+        } else if (rollover == 0) {
+            return (int) (sequence & MAX_BLOCK);
+        } else {
+            return (int) ((sequence - 1) % MAX_BLOCK) + 1;
+        }
+    }
+
+
+    /**
+     * Finds the count of the block that a 2-byte block number stands for.
+     *
+     * This undoes {@link #blockNumber(long sequence, int rollover)}, by taking
+     * the first count from the reference onwards that has the same number.
+     * It is exact for any count less than one rollover past the reference.
+     *
+     * @param   number      The int block number from the packet.
+     * @param   reference   The long count of the last block acknowledged.
+     * @param   rollover    The int block number to roll over to, 0 or 1.
+     * @return  The long count of the block, starting at 1.
      */
-    public static int getTotalBlocks(int fileSize) {
+    public static long getSequence(int number, long reference, int rollover) {
 
-        return (fileSize + BLOCK - 1) / BLOCK;
+        if (rollover == 0) {
+            return reference + ((number - reference) & MAX_BLOCK);
+        } else {
+            return reference + Math.floorMod(number - reference, MAX_BLOCK);
+        }
     }
 
 
@@ -137,59 +221,139 @@ public class Tftp {
      */
     public static DatagramPacket rrqPacket(String fileName, InetAddress addr) throws IOException {
 
-        byte[] msg = fileName.getBytes();
-        byte[] pkt = new byte[msg.length + 1];
+        return rrqPacket(fileName, new LinkedHashMap<>(), addr);
+    }
 
-        pkt[0] = RRQ;
-        System.arraycopy(msg, 0, pkt, OFFSET, msg.length);
 
-        return new DatagramPacket(pkt, pkt.length, addr, PORT);
+    /**
+     * Creates an RRQ packet for the file name requested, followed by the
+     * options to negotiate as described by RFC 2347.
+     *
+     * @param   fileName    The String file name to request.
+     * @param   options     The Map of option names to values to request.
+     * @param   addr        The InetAddress of the TftpServer.
+     * @return  The DatagramPacket format for an RRQ.
+     * @throws  IOException
+     */
+    public static DatagramPacket rrqPacket(String fileName, Map<String, String> options, InetAddress addr) throws IOException {
+
+        return rrqPacket(fileName, options, addr, PORT);
     }
 
 
     /**
-     * Creates a DATA packet array for the file to be sent as.
+     * Creates an RRQ packet for the file name requested, with the options,
+     * to a TftpServer that listens on another port than {@link #PORT}.
      *
-     * For the total amount of blocks required, creates a DatagramPacket for
-     * each one that contains its block number and partition of file bytes.
+     * @param   fileName    The String file name to request.
+     * @param   options     The Map of option names to values to request.
+     * @param   addr        The InetAddress of the TftpServer.
+     * @param   port        The int port the TftpServer listens on.
+     * @return  The DatagramPacket format for an RRQ.
+     * @throws  IOException
+     */
+    public static DatagramPacket rrqPacket(String fileName, Map<String, String> options, InetAddress addr, int port) throws IOException {
+
+        return requestPacket(RRQ, fileName, options, addr, port);
+    }
+
+
+    /**
+     * Creates a WRQ packet for the file name to upload, with the options, to
+     * a TftpServer on the port.
      *
-     * @param   file    The file byte array to divide and package.
-     * @param   addr    The InetAddress of the TftpServer.
-     * @param   port    The int port that the packets will be sent over.
-     * @return  The array of formatted DatagramPackets containing file blocks.
+     * @param   fileName    The String file name to write on the TftpServer.
+     * @param   options     The Map of option names to values to request.
+     * @param   addr        The InetAddress of the TftpServer.
+     * @param   port        The int port the TftpServer listens on.
+     * @return  The DatagramPacket format for a WRQ.
      * @throws  IOException
      */
-    public static DatagramPacket[] dataPacket(byte[] file, InetAddress addr, int port) throws IOException {
+    public static DatagramPacket wrqPacket(String fileName, Map<String, String> options, InetAddress addr, int port) throws IOException {
 
-        int sent = 0;
-        int size = file.length;
-        int totalBlocks = getTotalBlocks(size);
+        return requestPacket(WRQ, fileName, options, addr, port);
+    }
 
-        DatagramPacket[] packets = new DatagramPacket[totalBlocks];
 
-        for (int block = 0; block < totalBlocks; block++) {
+    /**
+     * Creates an RRQ or WRQ packet, which only differ by their Op Code.
+     *
+     * @param   opcode      The short Op Code, {@link #RRQ} or {@link #WRQ}.
+     * @param   fileName    The String file name to request.
+     * @param   options     The Map of option names to values to request.
+     * @param   addr        The InetAddress of the TftpServer.
+     * @param   port        The int port the TftpServer listens on.
+     * @return  The DatagramPacket format for the request.
+     * @throws  IOException
+     */
+    private static DatagramPacket requestPacket(short opcode, String fileName, Map<String, String> options, InetAddress addr, int port) throws IOException {
 
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] msg = fileName.getBytes(ENCODING);
+        byte[] mode = MODE.getBytes(ENCODING);
+        byte[] opts = getBytes(options);
 
-            int remaining = size - sent;
-            int toSend = Math.min(remaining, BLOCK);
+        ByteBuffer pkt = ByteBuffer.allocate(OFFSET + msg.length + mode.length + 2 + opts.length);
+        pkt.putShort(opcode);           /* Writing RRQ or WRQ Op Code */
+        pkt.put(msg).put((byte) 0);     /* Writing file name */
+        pkt.put(mode).put((byte) 0);    /* Writing transfer mode */
+        pkt.put(opts);                  /* Writing requested options */
 
-            bos.write(DATA);                /* Writing DATA Op Code */
-            bos.write((byte)(block + 1));   /* Writing block number */
-            bos.write(file, sent, toSend);  /* Writing part of file bytes */
+        return new DatagramPacket(pkt.array(), pkt.position(), addr, port);
+    }
 
-            byte[] pkt = bos.toByteArray(); /* Get the new array from stream */
-            packets[block] = new DatagramPacket(pkt, pkt.length, addr, port);
 
-            sent += toSend;
-        }
-        return packets;
+    /**
+     * Creates an OACK packet with the options that were accepted.
+     *
+     * @param   options     The Map of option names to the values accepted.
+     * @param   addr        The InetAddress of the destination.
+     * @param   port        The port to send the packet through.
+     * @return  The DatagramPacket format for an OACK packet.
+     * @throws  IOException
+     */
+    public static DatagramPacket oackPacket(Map<String, String> options, InetAddress addr, int port) throws IOException {
+
+        byte[] opts = getBytes(options);
+
+        ByteBuffer pkt = ByteBuffer.allocate(OFFSET + opts.length);
+        pkt.putShort(OACK);             /* Writing OACK Op Code */
+        pkt.put(opts);                  /* Writing accepted options */
+
+        return new DatagramPacket(pkt.array(), pkt.position(), addr, port);
+    }
+
+
+    /**
+     * Encodes the DATA packet of a single block into the buffer.
+     *
+     * Only the requested block is read from the source, straight into the
+     * buffer after the header. The buffer is meant to be reused for every
+     * block of a transfer, so no packet is built ahead of time or allocated.
+     *
+     * @see     #blockNumber(long sequence, int rollover)
+     * @param   source      The TftpSource to read the block from.
+     * @param   block       The long index of the block, starting at 0.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @param   rollover    The int block number to roll over to, 0 or 1.
+     * @param   buf         The ByteBuffer with room for a block and header.
+     * @return  The int length of the packet, flipped and ready to be sent.
+     * @throws  IOException
+     */
+    public static int dataPacket(TftpSource source, long block, int blksize, int rollover, ByteBuffer buf) throws IOException {
+
+        buf.clear();
+        buf.putShort(DATA);             /* Writing DATA Op Code */
+        buf.putShort((short) blockNumber(block + 1, rollover));
+        source.read(block, blksize, buf);   /* Reading part of file bytes */
+        buf.flip();
+
+        return buf.limit();
     }
 
 
     /**
      * Creates an ACK packet with the int block number to acknowledge.
-     * Note: The block number is cast as a byte.
+     * Note: The block number is written as 2 bytes, after any rollover.
      *
      * @param   block   The int block number to acknowledge.
      * @param   addr    The InetAddress of the destination.
@@ -199,13 +363,37 @@ public class Tftp {
      */
     public static DatagramPacket ackPacket(int block, InetAddress addr, int port) throws IOException {
 
-        byte[] pkt = {ACK, (byte)block};
-        return new DatagramPacket(pkt, pkt.length, addr, port);
+        return ackPacket(block, new DatagramPacket(new byte[HEADER], HEADER, addr, port));
+    }
+
+
+    /**
+     * Encodes an ACK packet with the int block number into the packet.
+     *
+     * The packet is meant to be reused for every ACK of a transfer, the same
+     * as the buffer of {@link #dataPacket}, so no packet is allocated per
+     * block. Its destination is left as it was.
+     *
+     * @param   block   The int block number to acknowledge.
+     * @param   pkt     The DatagramPacket with room for a header.
+     * @return  The same DatagramPacket, ready to be sent.
+     */
+    public static DatagramPacket ackPacket(int block, DatagramPacket pkt) {
+
+        byte[] data = pkt.getData();
+        data[0] = 0;
+        data[1] = (byte) ACK;           /* Writing ACK Op Code */
+        data[2] = (byte) (block >> 8);
+        data[3] = (byte) block;
+        pkt.setLength(HEADER);
+
+        return pkt;
     }
 
 
     /**
      * Creates an ERROR packet with the String message to send.
+     * The error code is 0, "Not defined", as the message describes the error.
      *
      * @param   message The String error message to send with the packet.
      * @param   addr    The InetAddress of the destination.
@@ -215,33 +403,182 @@ public class Tftp {
      */
     public static DatagramPacket errorPacket(String message, InetAddress addr, int port) throws IOException {
 
-        byte[] msg = message.getBytes();
-        byte[] pkt = new byte[msg.length + OFFSET];
+        return errorPacket(0, message, addr, port);
+    }
+
+
+    /**
+     * Creates an ERROR packet with an error code of RFC 1350, such as
+     * {@link #UNKNOWN_TID}, and the String message to send.
+     *
+     * @param   code    The int error code.
+     * @param   message The String error message to send with the packet.
+     * @param   addr    The InetAddress of the destination.
+     * @param   port    The port to send the packet through.
+     * @return  The DatagramPacket format for an ERROR packet with a message.
+     * @throws  IOException
+     */
+    public static DatagramPacket errorPacket(int code, String message, InetAddress addr, int port) throws IOException {
+
+        byte[] msg = message.getBytes(ENCODING);
 
-        pkt[0] = ERROR;
-        System.arraycopy(msg, 0, pkt, OFFSET, msg.length);
+        ByteBuffer pkt = ByteBuffer.allocate(HEADER + msg.length + 1);
+        pkt.putShort(ERROR);            /* Writing ERROR Op Code */
+        pkt.putShort((short) code);     /* Writing error code */
+        pkt.put(msg).put((byte) 0);     /* Writing error message */
 
-        return new DatagramPacket(pkt, pkt.length, addr, port);
+        return new DatagramPacket(pkt.array(), pkt.position(), addr, port);
     }
 
 
     /**
-     * Gets the String message of a 1-byte RRQ or ERROR packet.
+     * Gets the 2-byte Op Code of a packet.
      *
      * @param   data    The byte array of data from the DatagramPacket.
+     * @return  The int Op Code, or -1 if the packet is too short.
+     */
+    public static int getOpcode(byte[] data) {
+
+        if (data.length < OFFSET) {
+            return -1;
+        }
+        return ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+    }
+
+
+    /**
+     * Gets the 2-byte block number of a DATA or ACK packet.
+     *
+     * @param   data    The byte array of data from the DatagramPacket.
+     * @return  The int block number, from 0 to {@link #MAX_BLOCK}.
+     */
+    public static int getBlock(byte[] data) {
+
+        return ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+
+    /**
+     * Gets a zero-terminated String from a packet, such as the file name or
+     * mode of an RRQ, or the message of an ERROR packet.
+     *
+     * @param   data    The byte array of data from the DatagramPacket.
+     * @param   offset  The int index the String starts at.
      * @return  The String message, extracted from the packet's array.
      * @throws  IOException
      */
-    public static String getString(byte[] data) throws IOException {
+    public static String getString(byte[] data, int offset) throws IOException {
+
+        if (offset >= data.length) {
+            return "";
+        }
+
+        int end = offset;
+        while (end < data.length && data[end] != 0) {
+            end++;
+        }
+
+        String message = new String(data, offset, end - offset, ENCODING);
+        return message.trim();
+    }
+
+
+    /**
+     * Gets the transfer mode of an RRQ or WRQ, the String after the file name.
+     *
+     * Both "octet" and "netascii" are accepted, and either way the file is
+     * sent unchanged, as in octet mode.
+     *
+     * @param   data    The byte array of data from the request packet.
+     * @return  The String mode, in lower case.
+     * @throws  IOException if the mode is missing or not supported.
+     */
+    public static String getMode(byte[] data) throws IOException {
+
+        String mode = getString(data, skip(data, OFFSET)).toLowerCase();
+        if (mode.equals(MODE) || mode.equals(NETASCII)) {
+            return mode;
+        } else {
+            throw new IOException("Transfer mode '" + mode + "' is not supported.");
+        }
+    }
+
+
+    /**
+     * Gets the options of a request, the pairs of Strings after the mode.
+     *
+     * @param   data    The byte array of data from the request packet.
+     * @return  The Map of option names in lower case to their values.
+     * @throws  IOException
+     */
+    public static Map<String, String> getOptions(byte[] data) throws IOException {
 
-    	int len = data.length - OFFSET;
-    	byte[] msg = new byte[len];
+        int offset = skip(data, skip(data, OFFSET));    /* After the mode */
+        return getOptions(data, offset, data.length);
+    }
 
-    	for (int i = 0; i < len; i++) {
-    		msg[i] = data[i + OFFSET];
-    	}
 
-        String message = new String(msg, ENCODING);
-    	return message.trim();
+    /**
+     * Gets the pairs of zero-terminated Strings of an RRQ or OACK packet.
+     *
+     * @param   data    The byte array of data from the DatagramPacket.
+     * @param   offset  The int index the first option starts at.
+     * @param   length  The int length of the packet.
+     * @return  The Map of option names in lower case to their values.
+     * @throws  IOException
+     */
+    public static Map<String, String> getOptions(byte[] data, int offset, int length) throws IOException {
+
+        Map<String, String> options = new LinkedHashMap<>();
+
+        while (offset < length) {
+            int end = skip(data, offset);
+            if (end >= length) {
+                break;              /* A name without a value is ignored */
+            }
+            String name = new String(data, offset, end - offset - 1, ENCODING);
+            offset = Math.min(skip(data, end), length + 1);
+            String value = new String(data, end, offset - end - 1, ENCODING);
+
+            options.put(name.toLowerCase(), value);
+        }
+        return options;
+    }
+
+
+    /**
+     * Encodes the options as pairs of zero-terminated Strings.
+     *
+     * @param   options The Map of option names to values.
+     * @return  The byte array of the encoded options.
+     * @throws  IOException
+     */
+    private static byte[] getBytes(Map<String, String> options) throws IOException {
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            bos.write(option.getKey().getBytes(ENCODING));
+            bos.write(0);
+            bos.write(option.getValue().getBytes(ENCODING));
+            bos.write(0);
+        }
+        return bos.toByteArray();
+    }
+
+
+    /**
+     * Skips over a zero-terminated String.
+     *
+     * @param   data    The byte array of data from the DatagramPacket.
+     * @param   offset  The int index the String starts at.
+     * @return  The int index after the terminating zero.
+     */
+    private static int skip(byte[] data, int offset) {
+
+        while (offset < data.length && data[offset] != 0) {
+            offset++;
+        }
+        return offset + 1;
     }
 }
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+
+/**
+ * TftpAlloc class.
+ *
+ * A check that the TftpServer allocates nothing on the Java heap for each
+ * block it sends, once the JIT has compiled the transfer loops.
+ *
+ * A TftpServer is started in this JVM for each engine, once with a cache
+ * large enough to hold the files and frame them, so that blocks are written
+ * from their {@link TftpFrames}, and once with a cache so small that the
+ * files are mapped as a {@link TftpMapping}. A {@link TftpClient} on the main
+ * thread downloads a small and a large file from it, a few times each to warm
+ * up, then a few more while the bytes allocated by every other thread of the
+ * JVM are counted by the ThreadMXBean. The client and the log are left out.
+ *
+ * Whatever a transfer allocates once, such as its request, options and
+ * progress, is the same for both files, so the difference between the two
+ * over the difference in blocks is what each block costs. The least of each
+ * file's counts is taken, so that a thread of the JVM waking up during one
+ * download isn't counted against the server.
+ *
+ * Any allocation for each block would be at least one object, of 16 bytes
+ * or more, so the check fails if a block costs 1 byte or more, and the
+ * program then exits with status 1:
+ *
+ *      java TftpAlloc [-blksize 1428] [-windowsize 8]
+ *
+ * @see     TftpWorker
+ * @see     TftpSession
+ * @see     TftpPool
+ */
+public class TftpAlloc {
+
+    public static final long SMALL = 1L << 20;  /* Bytes of the small file */
+    public static final long LARGE = 8L << 20;  /* Bytes of the large file */
+    public static final int WARMUP = 3;         /* Downloads of each file to warm up */
+    public static final int ROUNDS = 3;         /* Downloads of each file counted */
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final InetAddress addr = InetAddress.getLoopbackAddress();
+    private final Path root;                    /* The temporary directory */
+    private final int blksize;
+    private final int windowsize;
+
+    /**
+     * TftpAlloc constructor.
+     *
+     * @param   root        The Path of the temporary directory.
+     * @param   blksize     The int block size the client requests.
+     * @param   windowsize  The int window size the client requests.
+     */
+    public TftpAlloc(Path root, int blksize, int windowsize) {
+
+        this.root = root;
+        this.blksize = blksize;
+        this.windowsize = windowsize;
+    }
+
+
+    /**
+     * Entry point main.
+     * Checks each engine with the files held and mapped.
+     *
+     * @param   args    The block size and window size to request.
+     */
+    public static void main(String[] args) {
+
+        int blksize = 1428, windowsize = 8;
+        Path root = null;
+        boolean passed = true;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                switch (args[i]) {
+                    case "-blksize":    blksize = Integer.parseInt(args[i + 1]); break;
+                    case "-windowsize": windowsize = Integer.parseInt(args[i + 1]); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown flag " + args[i]);
+                }
+            }
+
+            TftpLog.setLevel(TftpLog.OFF);
+            root = Files.createTempDirectory("TftpAlloc");
+            TftpAlloc alloc = new TftpAlloc(root, blksize, windowsize);
+            String small = alloc.createFile(SMALL);
+            String large = alloc.createFile(LARGE);
+
+            System.out.printf("%-10s %-8s %12s %12s %10s%n", "engine", "source", "B/small", "B/large", "B/block");
+            for (String engine : new String[] {TftpConfig.BLOCKING, TftpConfig.NIO}) {
+                passed &= alloc.check(engine, "held", "128", small, large);
+                passed &= alloc.check(engine, "mapped", "1", small, large);
+            }
+            System.out.println(passed ? "PASSED" : "FAILED: the server allocates for each block");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: $ java TftpAlloc [-blksize N] [-windowsize N]");
+            passed = false;
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+            passed = false;
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException: " + e.getMessage());
+            passed = false;
+        } finally {
+            delete(root);
+        }
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Starts a TftpServer, counts what it allocates to send each file, and
+     * prints the bytes each block costs.
+     *
+     * @param   engine  The String engine of the TftpServer.
+     * @param   source  The String name of how the files are read, to print.
+     * @param   cache   The String megabytes of the cache of the TftpServer.
+     * @param   small   The String name of the small file.
+     * @param   large   The String name of the large file.
+     * @return  True if a block costs less than 1 byte, False otherwise.
+     * @throws  IOException
+     * @throws  InterruptedException
+     */
+    public boolean check(String engine, String source, String cache, String small, String large) throws IOException, InterruptedException {
+
+        int port = freePort();
+        TftpServer server = new TftpServer(addr, TftpConfig.parse(new String[] {"-port", String.valueOf(port),
+            "-dir", root.resolve("server").toString(), "-engine", engine, "-cache", cache, "-log", "off"}));
+        server.start();
+
+        try {
+            TftpConfig config = TftpConfig.parse(new String[] {"-port", String.valueOf(port),
+                "-blksize", String.valueOf(blksize), "-windowsize", String.valueOf(windowsize), "-log", "off"});
+
+            for (int i = 0; i < WARMUP; i++) {
+                download(config, small);
+                download(config, large);
+            }
+            long smallBytes = Long.MAX_VALUE, largeBytes = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS; i++) {
+                smallBytes = Math.min(smallBytes, download(config, small));
+                largeBytes = Math.min(largeBytes, download(config, large));
+            }
+
+            long blocks = Tftp.getTotalBlocks(LARGE, blksize) - Tftp.getTotalBlocks(SMALL, blksize);
+            double perBlock = (double) (largeBytes - smallBytes) / blocks;
+            System.out.printf("%-10s %-8s %12d %12d %10.2f%n", engine, source, smallBytes, largeBytes, perBlock);
+            return perBlock < 1;
+        } finally {
+            server.shutdown();
+            server.join();
+        }
+    }
+
+
+    /**
+     * Downloads a file, and counts the bytes the other threads allocated
+     * meanwhile.
+     *
+     * @param   config  The TftpConfig of the TftpClient.
+     * @param   name    The String name of the file to download.
+     * @return  The long amount of bytes allocated by the TftpServer.
+     * @throws  IOException if the download did not complete.
+     */
+    private long download(TftpConfig config, String name) throws IOException {
+
+        Path dir = Files.createDirectories(root.resolve("client"));
+        long[] ids = serverThreads();
+        long before = allocated(ids);
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            TftpClient tftp = new TftpClient(addr, name, dir.toString(), config);
+            if (!tftp.downloadFile(socket, dir.resolve(name))) {
+                throw new IOException("Download of " + name + " failed.");
+            }
+        }
+        return allocated(ids) - before;
+    }
+
+
+    /**
+     * Gets the ids of every live thread other than this one and the log.
+     * A worker thread of the blocking engine is reused from one download to
+     * the next once warmed up, so it is counted by its id.
+     *
+     * @return  The long array of thread ids.
+     */
+    private static long[] serverThreads() {
+
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> t != Thread.currentThread() && !t.getName().equals("TftpLog"))
+            .mapToLong(Thread::getId)
+            .toArray();
+    }
+
+
+    /**
+     * Sums the bytes the threads have allocated since they started. A thread
+     * that has ended counts as -1, and is left out.
+     *
+     * @param   ids     The long array of thread ids.
+     * @return  The long amount of bytes allocated.
+     */
+    private static long allocated(long[] ids) {
+
+        return Arrays.stream(threads.getThreadAllocatedBytes(ids)).filter(n -> n > 0).sum();
+    }
+
+
+    /**
+     * Creates a file of random bytes in the directory of the TftpServer.
+     *
+     * @param   size    The long size of the file in bytes.
+     * @return  The String name of the file.
+     * @throws  IOException
+     */
+    private String createFile(long size) throws IOException {
+
+        String name = "alloc-" + size + ".bin";
+        Path server = Files.createDirectories(root.resolve("server"));
+        Random random = new Random(size);
+        byte[] chunk = new byte[1 << 20];
+
+        try (OutputStream out = Files.newOutputStream(server.resolve(name))) {
+            for (long left = size; left > 0; left -= chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+        }
+        return name;
+    }
+
+
+    /**
+     * Finds a port that is free on this machine, by binding to port 0.
+     *
+     * @return  The int ephemeral port the system picked.
+     * @throws  IOException
+     */
+    private static int freePort() throws IOException {
+
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * Deletes the temporary directory and everything in it.
+     *
+     * @param   root    The Path of the directory, or null if none was made.
+     */
+    private static void delete(Path root) {
+
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            all.sort(Comparator.reverseOrder());    /* Children before parents */
+            for (Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not delete " + root + ": " + e.getMessage());
+        }
+    }
+}
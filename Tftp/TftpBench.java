@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * TftpBench class.
+ *
+ * A micro-benchmark of the packet encoding and decoding of {@link Tftp}, to
+ * measure a change to it against a baseline.
+ *
+ * Each operation is run on the main thread for {@link #WARMUP} milliseconds,
+ * so that the JIT compiles it, then for {@link #ITERATIONS} rounds of
+ * {@link #TIME} milliseconds each. A round reports the operations done each
+ * second, and the bytes the thread allocated for each operation, as counted
+ * by the ThreadMXBean of the JVM. The results of each operation are summed
+ * into a field, and a packet it creates is stored in one, so the JIT can't
+ * discard the work, nor keep the packet off the heap.
+ *
+ * The DATA packets are encoded from files of 1 KB, 1 MB and 1 GB, held in
+ * memory by the {@link TftpCache}, read from disk, or mapped, at a random
+ * block each time. The files are sparse, so they take no space on disk, and
+ * are deleted on exit.
+ *
+ * The packets decoded are those a session reads: the opcode of DATA packets
+ * and the block number of ACKs, for 1024 different blocks, and the options
+ * of an RRQ that asks for the block size, window size, size and timeout, as
+ * well as of the OACK that answers it.
+ *
+ * Only the operations whose name contains one of the arguments are run, or
+ * every one if there are none:
+ *
+ *      java TftpBench [name...]
+ *
+ * @see     Tftp
+ */
+public class TftpBench {
+
+    public static final int WARMUP = 2000;      /* Milliseconds to warm up */
+    public static final int TIME = 1000;        /* Milliseconds of each round */
+    public static final int ITERATIONS = 5;     /* Rounds measured */
+    public static final int BATCH = 256;        /* Operations between clock reads */
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long sink;                   /* Sum of every result */
+    private static Object escaped;              /* The last object created */
+
+    /**
+     * Op interface.
+     *
+     * One operation to measure.
+     */
+    private interface Op {
+
+        /**
+         * Runs the operation once.
+         *
+         * @param   i   The int count of the run, to vary the input.
+         * @return  The long result, to be summed.
+         * @throws  IOException
+         */
+        long run(int i) throws IOException;
+    }
+
+
+    /**
+     * TftpBench private constructor.
+     * Not to be instantiated, only static use.
+     */
+    private TftpBench() {
+
+    }
+
+
+    /**
+     * Entry point main.
+     * Sets up the files and packets, then runs each operation in turn.
+     *
+     * @param   args    The names of the operations to run, or none for all.
+     */
+    public static void main(String[] args) {
+
+        try {
+            Map<String, Op> ops = operations();
+
+            System.out.printf("%-28s %16s %12s%n", "Benchmark", "ops/s", "B/op");
+            for (Map.Entry<String, Op> op : ops.entrySet()) {
+                if (matches(op.getKey(), args)) {
+                    measure(op.getKey(), op.getValue());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Sets up every operation to measure, in the order they are run.
+     *
+     * @return  The Map of names to operations.
+     * @throws  IOException
+     */
+    private static Map<String, Op> operations() throws IOException {
+
+        Map<String, Op> ops = new LinkedHashMap<>();
+        InetAddress addr = InetAddress.getLoopbackAddress();
+        long[] sizes = {1L << 10, 1L << 20, 1L << 30};
+        String[] names = {"1KB", "1MB", "1GB"};
+
+        TftpCache held = new TftpCache(Long.MAX_VALUE);
+        TftpCache mapped = new TftpCache(0);    /* Maps every file */
+        ByteBuffer buf = ByteBuffer.allocateDirect(Tftp.BUFFER);
+
+        for (int s = 0; s < sizes.length; s++) {
+            long size = sizes[s];
+            long total = Tftp.getTotalBlocks(size, Tftp.BLOCK);
+            long[] blocks = randomBlocks(total);
+            Path path = sparseFile(size);
+
+            if (size <= (1L << 20)) {
+                TftpSource bytes = held.open(path);
+                ops.put("dataPacket.cached." + names[s], i -> Tftp.dataPacket(bytes, blocks[i & 1023], Tftp.BLOCK, 0, buf));
+
+                TftpFrames frames = bytes.getFrames(Tftp.BLOCK, 0);
+                ByteBuffer view = frames.view();
+                ops.put("frame.cached." + names[s], i -> frames.frame(blocks[i & 1023], view));
+            }
+
+            TftpSource file = Tftp.openFile(path);
+            ops.put("dataPacket.file." + names[s], i -> Tftp.dataPacket(file, blocks[i & 1023], Tftp.BLOCK, 0, buf));
+
+            TftpSource mapping = mapped.open(path);
+            ops.put("dataPacket.mapped." + names[s], i -> Tftp.dataPacket(mapping, blocks[i & 1023], Tftp.BLOCK, 0, buf));
+
+            ops.put("getTotalBlocks." + names[s], i -> Tftp.getTotalBlocks(size + i, Tftp.BLOCK));
+        }
+
+        DatagramPacket ack = new DatagramPacket(new byte[Tftp.HEADER], Tftp.HEADER);
+        ops.put("ackPacket.new", i -> escape(Tftp.ackPacket(i & Tftp.MAX_BLOCK, addr, Tftp.PORT)));
+        ops.put("ackPacket.reused", i -> Tftp.ackPacket(i & Tftp.MAX_BLOCK, ack).getLength());
+
+        ops.put("errorPacket", i -> escape(Tftp.errorPacket("File was not found at specified path.", addr, Tftp.PORT)));
+
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TftpOptions.BLKSIZE, "1428");
+        options.put(TftpOptions.WINDOWSIZE, "16");
+        ops.put("rrqPacket", i -> escape(Tftp.rrqPacket("images/boot.img", addr)));
+        ops.put("rrqPacket.options", i -> escape(Tftp.rrqPacket("images/boot.img", options, addr)));
+
+        byte[] rrq = Tftp.rrqPacket("images/boot.img", options, addr).getData();
+        ops.put("getString", i -> {
+            String name = Tftp.getString(rrq, Tftp.OFFSET);
+            escaped = name;
+            return name.length();
+        });
+
+        /* The packets a session decodes, of a different block each time */
+        byte[][] data = new byte[1024][];
+        byte[][] acks = new byte[1024][];
+        TftpSource bytes = new TftpBytes(new byte[Tftp.BLOCK * 1024]);
+        for (int b = 0; b < 1024; b++) {
+            ByteBuffer packet = ByteBuffer.allocate(Tftp.BUFFER);
+            Tftp.dataPacket(bytes, b, Tftp.BLOCK, 0, packet);
+            data[b] = Arrays.copyOf(packet.array(), packet.limit());
+            acks[b] = Tftp.ackPacket(b + 1, addr, Tftp.PORT).getData();
+        }
+        ops.put("getOpcode", i -> Tftp.getOpcode(data[i & 1023]));
+        ops.put("getBlock", i -> Tftp.getBlock(acks[i & 1023]));
+
+        Map<String, String> requested = new LinkedHashMap<>(options);
+        requested.put(TftpOptions.TSIZE, "0");
+        requested.put(TftpOptions.TIMEOUT, "2");
+        byte[] request = trim(Tftp.rrqPacket("images/boot.img", requested, addr));
+        ops.put("getOptions.rrq", i -> {
+            Map<String, String> decoded = Tftp.getOptions(request);
+            escaped = decoded;
+            return decoded.size();
+        });
+
+        requested.put(TftpOptions.TSIZE, "1073741824");
+        DatagramPacket oack = Tftp.oackPacket(requested, addr, Tftp.PORT);
+        ops.put("getOptions.oack", i -> {
+            Map<String, String> decoded = Tftp.getOptions(oack.getData(), Tftp.OFFSET, oack.getLength());
+            escaped = decoded;
+            return decoded.size();
+        });
+
+        return ops;
+    }
+
+
+    /**
+     * Copies the bytes of a packet, trimmed to its length, as a session
+     * passes a request to be decoded.
+     *
+     * @param   pkt     The DatagramPacket to copy.
+     * @return  The byte array of the packet.
+     */
+    private static byte[] trim(DatagramPacket pkt) {
+
+        return Arrays.copyOfRange(pkt.getData(), pkt.getOffset(), pkt.getOffset() + pkt.getLength());
+    }
+
+
+    /**
+     * Stores a packet where the JIT can't see it go unused.
+     *
+     * @param   pkt     The DatagramPacket created by the operation.
+     * @return  The int length of the packet.
+     */
+    private static int escape(DatagramPacket pkt) {
+
+        escaped = pkt;
+        return pkt.getLength();
+    }
+
+
+    /**
+     * Measures one operation, and prints its throughput and allocation.
+     *
+     * @param   name    The String name of the operation.
+     * @param   op      The Op to measure.
+     * @throws  IOException
+     */
+    private static void measure(String name, Op op) throws IOException {
+
+        round(op, WARMUP);
+
+        List<double[]> rounds = new ArrayList<>();
+        for (int r = 0; r < ITERATIONS; r++) {
+            rounds.add(round(op, TIME));
+        }
+
+        double rate = 0, min = Double.MAX_VALUE, max = 0, bytes = 0;
+        for (double[] result : rounds) {
+            rate += result[0] / rounds.size();
+            min = Math.min(min, result[0]);
+            max = Math.max(max, result[0]);
+            bytes += result[1] / rounds.size();
+        }
+        System.out.printf("%-28s %16.0f %12.1f   (%.0f - %.0f)%n", name, rate, bytes, min, max);
+    }
+
+
+    /**
+     * Runs an operation for a while, in batches between reads of the clock.
+     *
+     * @param   op      The Op to run.
+     * @param   time    The int milliseconds to run for.
+     * @return  The operations each second, and the bytes allocated by each.
+     * @throws  IOException
+     */
+    private static double[] round(Op op, int time) throws IOException {
+
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long deadline = start + time * 1000000L;
+        long now;
+        int count = 0;
+        long sum = 0;
+
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                sum += op.run(count + i);
+            }
+            count += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        sink += sum;
+        return new double[] {count * 1e9 / (now - start), (double) allocated / count};
+    }
+
+
+    /**
+     * Picks the blocks to encode, spread over the whole file.
+     *
+     * @param   total   The long amount of blocks in the file.
+     * @return  The long array of 1024 block indexes.
+     */
+    private static long[] randomBlocks(long total) {
+
+        Random random = new Random(total);
+        long[] blocks = new long[1024];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = (long) (random.nextDouble() * total);
+        }
+        return blocks;
+    }
+
+
+    /**
+     * Creates a sparse file of the size, deleted on exit.
+     *
+     * @param   size    The long size of the file in bytes.
+     * @return  The Path of the file.
+     * @throws  IOException
+     */
+    private static Path sparseFile(long size) throws IOException {
+
+        Path path = Files.createTempFile("TftpBench", ".bin");
+        path.toFile().deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        return path;
+    }
+
+
+    /**
+     * Checks if the name of an operation contains one of the arguments.
+     *
+     * @param   name    The String name of the operation.
+     * @param   args    The String filters, or none to match every name.
+     * @return  True if the operation is to be run, False otherwise.
+     */
+    private static boolean matches(String name, String[] args) {
+
+        if (args.length == 0) {
+            return true;
+        }
+        for (String arg : args) {
+            if (name.contains(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+
+
+/**
+ * TftpBytes class.
+ *
+ * A {@link TftpSource} over the contents of a file that are held in memory,
+ * as kept by the {@link TftpCache}.
+ *
+ * The array is shared by every session that sends the file, and is never
+ * written to, so each block is copied straight out of it.
+ *
+ * @see     TftpCache
+ */
+public class TftpBytes implements TftpSource {
+
+    private final byte[] data;
+
+    /**
+     * TftpBytes constructor.
+     *
+     * @param   data    The byte array of the whole file.
+     */
+    public TftpBytes(byte[] data) {
+
+        this.data = data;
+    }
+
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return  The long size of the file in bytes.
+     */
+    @Override
+    public long size() {
+
+        return data.length;
+    }
+
+
+    /**
+     * Copies the bytes of one block into the buffer, at its position.
+     *
+     * @param   block   The long index of the block, starting at 0.
+     * @param   blksize The int amount of file bytes in each block.
+     * @param   dst     The ByteBuffer to copy into, with room for the block.
+     * @return  The int amount of bytes copied, less than a full block if last.
+     */
+    @Override
+    public int read(long block, int blksize, ByteBuffer dst) {
+
+        long position = block * blksize;
+        int length = (int) Math.min(blksize, data.length - position);
+
+        dst.put(data, (int) position, length);
+        return length;
+    }
+
+
+    /**
+     * Does nothing, as the array belongs to the cache.
+     */
+    @Override
+    public void close() {
+
+    }
+}
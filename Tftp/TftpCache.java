@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * TftpCache class.
+ *
+ * Keeps the contents of the files that are requested most in memory, so that
+ * a file requested by many clients at once, such as a boot loader, is read
+ * from disk once and then sent from memory to each of them.
+ *
+ * The cache is a least recently used map of paths to contents, weighed by the
+ * bytes of each file. Once the contents held pass the capacity, the files
+ * least recently requested are dropped. A file larger than a quarter of the
+ * capacity, or than {@link #MAX_HELD}, is never held, and is mapped into
+ * memory as a {@link TftpMapping} instead, shared by the sessions that send
+ * it until the last one closes.
+ *
+ * The DATA packets of a file held are framed once for each block size asked
+ * for, as {@link TftpFrames}, and weighed with the contents. They are dropped
+ * along with the file. A file and its frames together never take more than
+ * a quarter of the capacity, so once a file is framed for the block sizes
+ * that fit, the other block sizes are sent from its contents instead, and a
+ * client cycling through block sizes can't grow the direct memory held.
+ *
+ * Each request checks the modified time and size of the file, so a file that
+ * has changed on disk is read again, and a stale copy is never sent. The
+ * first request for a file reads it while the others for the same file wait,
+ * so that it is read only once.
+ *
+ * The cache is shared by every session, on any thread.
+ *
+ * @see     TftpBytes
+ * @see     TftpServer
+ */
+public class TftpCache {
+
+    public static final long MAX_HELD = Integer.MAX_VALUE - 8;  /* The largest array */
+
+    private final long capacity;        /* The most bytes held */
+    private final long held;            /* The most bytes of one file and its frames */
+    private final LinkedHashMap<Path, Entry> entries;
+    private final HashMap<Path, TftpMapping> mappings;
+    private long weight;                /* The bytes held */
+
+    /**
+     * TftpCache constructor.
+     *
+     * @param   capacity    The long amount of bytes to hold at most.
+     */
+    public TftpCache(long capacity) {
+
+        this.capacity = capacity;
+        this.held = Math.min(capacity / 4, MAX_HELD);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);  /* By access */
+        this.mappings = new HashMap<>();
+    }
+
+
+    /**
+     * Opens the file that was requested, from memory if it is held.
+     *
+     * @param   filePath    The Path that describes where the file is located.
+     * @return  The TftpSource to read the blocks from.
+     * @throws  IOException
+     */
+    public TftpSource open(Path filePath) throws IOException {
+
+        BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+        if (attrs.size() > held) {
+            return map(filePath, attrs.size(), attrs.lastModifiedTime());
+        }
+
+        Entry entry = get(filePath, attrs.size(), attrs.lastModifiedTime());
+        byte[] data = entry.load(filePath);
+        if (data == null) {
+            return Tftp.openFile(filePath);     /* Changed while being read */
+        }
+        return new Cached(filePath, entry, data);
+    }
+
+
+    /**
+     * Gets the entry of the file, or adds an empty one in its place if there
+     * is none, or if the one held is of an older version of the file.
+     *
+     * @param   filePath    The Path of the file.
+     * @param   size        The long size of the file on disk.
+     * @param   modified    The FileTime the file was last modified on disk.
+     * @return  The Entry of the file, loaded or not.
+     */
+    private synchronized Entry get(Path filePath, long size, FileTime modified) {
+
+        Entry entry = entries.get(filePath);
+        if (entry != null && entry.size == size && entry.modified.equals(modified)) {
+            return entry;
+        }
+        if (entry != null) {
+            remove(filePath, entry);
+        }
+
+        entry = new Entry(size, modified);
+        entries.put(filePath, entry);
+        return entry;
+    }
+
+
+    /**
+     * Opens the mapping of a large file, and maps the file if it is not
+     * mapped yet, or if the mapping is of an older version of the file. An
+     * older mapping is dropped once the last session sending it has closed.
+     *
+     * @param   filePath    The Path of the file.
+     * @param   size        The long size of the file on disk.
+     * @param   modified    The FileTime the file was last modified on disk.
+     * @return  The TftpSource to read the blocks from.
+     * @throws  IOException
+     */
+    private synchronized TftpSource map(Path filePath, long size, FileTime modified) throws IOException {
+
+        TftpMapping mapping = mappings.get(filePath);
+        if (mapping == null || !mapping.matches(size, modified)) {
+            mapping = new TftpMapping(filePath, size, modified);
+            mappings.put(filePath, mapping);
+        }
+        return mapping.acquire(this);
+    }
+
+
+    /**
+     * Releases a mapping when a session closes it, and drops it once no
+     * session has it open.
+     *
+     * @param   mapping     The TftpMapping that was closed.
+     */
+    synchronized void release(TftpMapping mapping) {
+
+        if (mapping.release() && mappings.get(mapping.getPath()) == mapping) {
+            mappings.remove(mapping.getPath());
+        }
+    }
+
+
+    /**
+     * Weighs the bytes an entry has taken, once its contents are loaded or
+     * framed, then drops the entries least recently used until the bytes held
+     * fit the capacity.
+     *
+     * @param   filePath    The Path of the file.
+     * @param   entry       The Entry that was loaded or framed.
+     * @param   bytes       The long amount of bytes it has taken.
+     * @return  True if the entry is still held, False if it was replaced.
+     */
+    private synchronized boolean weigh(Path filePath, Entry entry, long bytes) {
+
+        if (entries.get(filePath) != entry) {
+            return false;   /* Replaced by a newer version while loading */
+        }
+        entry.weight += bytes;
+        weight += bytes;
+
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (weight > capacity && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (eldest != entry && eldest.weight > 0) {
+                weight -= eldest.weight;
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Removes an entry that failed to load, unless already replaced, so that
+     * a version of a file that can't be read isn't kept without a weight.
+     *
+     * @param   filePath    The Path of the file.
+     * @param   entry       The Entry that failed to load.
+     */
+    private synchronized void discard(Path filePath, Entry entry) {
+
+        if (entries.get(filePath) == entry) {
+            remove(filePath, entry);
+        }
+    }
+
+
+    /**
+     * Removes an entry, and its weight.
+     *
+     * @param   filePath    The Path of the file.
+     * @param   entry       The Entry to remove.
+     */
+    private void remove(Path filePath, Entry entry) {
+
+        entries.remove(filePath);
+        weight -= entry.weight;
+    }
+
+
+    /**
+     * Entry class.
+     *
+     * The contents of one version of a file, loaded by the first request,
+     * and its frames for each block size, framed by the first request for it.
+     */
+    private class Entry {
+
+        private final long size;            /* The size of the version */
+        private final FileTime modified;    /* The modified time of the version */
+        private volatile byte[] data;       /* The contents, once loaded */
+        private final HashMap<Integer, TftpFrames> frames = new HashMap<>();
+        private boolean failed;             /* True if the version has changed */
+        private long weight;                /* The bytes counted in the weight */
+
+        /**
+         * Entry constructor.
+         *
+         * @param   size        The long size of the file on disk.
+         * @param   modified    The FileTime the file was last modified on disk.
+         */
+        private Entry(long size, FileTime modified) {
+
+            this.size = size;
+            this.modified = modified;
+        }
+
+
+        /**
+         * Loads the contents of the file, unless already loaded.
+         *
+         * @param   filePath    The Path of the file.
+         * @return  The byte array of the contents, or null if the file no
+         *          longer matches this version.
+         * @throws  IOException
+         */
+        private byte[] load(Path filePath) throws IOException {
+
+            byte[] loaded = data;
+            if (loaded != null) {
+                return loaded;
+            }
+
+            synchronized (this) {
+                if (data == null && !failed) {
+                    try {
+                        byte[] read = Files.readAllBytes(filePath);
+                        if (read.length == size) {
+                            data = read;
+                            weigh(filePath, this, size);
+                        }
+                    } finally {
+                        if (data == null) {
+                            failed = true;      /* Changed, or not readable */
+                            discard(filePath, this);
+                        }
+                    }
+                }
+                return data;
+            }
+        }
+
+
+        /**
+         * Frames the contents for a block size, unless already framed. The
+         * frames are only built if, with the contents and the other frames of
+         * the entry, they fit a quarter of the capacity, and only kept if the
+         * entry is still held. An entry is never evicted to make room for its
+         * own frames, so this is what bounds it.
+         *
+         * @param   filePath    The Path of the file.
+         * @param   source      The TftpSource of the contents.
+         * @param   blksize     The int amount of file bytes in each block.
+         * @param   rollover    The int block number to roll over to, 0 or 1.
+         * @return  The TftpFrames of the contents, or null if not kept.
+         * @throws  IOException
+         */
+        private synchronized TftpFrames frame(Path filePath, TftpSource source, int blksize, int rollover) throws IOException {
+
+            Integer key = blksize * 2 + rollover;
+            TftpFrames framed = frames.get(key);
+            if (framed == null && weight + TftpFrames.weigh(size, blksize) <= held) {
+                framed = new TftpFrames(source, blksize, rollover);
+                if (weigh(filePath, this, framed.weight())) {
+                    frames.put(key, framed);
+                }
+            }
+            return framed;
+        }
+    }
+
+
+    /**
+     * Cached class.
+     *
+     * This class extends TftpBytes.
+     * The contents of a file held, as read by one session, which are also
+     * sent as frames.
+     */
+    private class Cached extends TftpBytes {
+
+        private final Path path;
+        private final Entry entry;
+
+        /**
+         * Cached constructor.
+         *
+         * @param   filePath    The Path of the file.
+         * @param   entry       The Entry that holds the contents.
+         * @param   data        The byte array of the whole file.
+         */
+        private Cached(Path filePath, Entry entry, byte[] data) {
+
+            super(data);
+            this.path = filePath;
+            this.entry = entry;
+        }
+
+
+        /**
+         * Gets the frames of the contents for a block size, framed by the
+         * first session to ask for them.
+         *
+         * @param   blksize     The int amount of file bytes in each block.
+         * @param   rollover    The int block number to roll over to, 0 or 1.
+         * @return  The TftpFrames of the contents, or null if too large.
+         * @throws  IOException
+         */
+        @Override
+        public TftpFrames getFrames(int blksize, int rollover) throws IOException {
+
+            return entry.frame(path, this, blksize, rollover);
+        }
+    }
+}
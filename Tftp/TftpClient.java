@@ -4,9 +4,22 @@ import java.net.DatagramSocket;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.BitSet;
+import java.util.function.Consumer;
 
 
 /**
@@ -16,15 +29,30 @@ import java.io.FileOutputStream;
  * Describes the client-side behaviour of Trivial File Transfer Protocol.
  *
  * The protocol is based on a simplified version of TFTP RFC 1350.
+ * Options such as the block size are requested as described by RFC 2347.
+ * A file is downloaded with an RRQ, or uploaded with a WRQ if the operation
+ * of the configuration is {@link TftpConfig#PUT}.
  *
  * @see 	Tftp
  * @see 	TftpServer
+ * @see 	TftpOptions
  */
 public class TftpClient extends Thread {
 
+	private static final Consumer<SelectionKey> IGNORE = key -> { };	/* Keys are read after */
+
 	private InetAddress addr;
+	private int port;				/* The port the TftpServer listens on */
 	private String file;
 	private Path path;
+	private String op;				/* Either TftpConfig.GET or PUT */
+	private TftpConfig config;
+	private Map<String, String> requested;	/* The options to request */
+	private int retries;			/* Resends of a packet after a timeout */
+	private int pace;				/* Pause after each ACK, 0 for none */
+	private int rollover = Tftp.ROLLOVER;	/* Detected at the first rollover */
+	private long firstBlock;		/* Time in ns the first block arrived */
+	private long lastBlock;			/* Time in ns the last block was ACK'd */
 
 	/**
 	 * TftpClient constructor.
@@ -33,12 +61,19 @@ public class TftpClient extends Thread {
 	 * @param   addr    The InetAddress of the current TftpServer.
 	 * @param   file    The name of the file to request.
 	 * @param   dir 	The name of the output directory.
+	 * @param   config 	The settings given on the command line.
 	 */
-	public TftpClient(InetAddress addr, String file, String dir) throws IOException {
+	public TftpClient(InetAddress addr, String file, String dir, TftpConfig config) throws IOException {
 
 		this.addr = addr;
+		this.port = config.getPort();
 		this.file = file;
 		this.path = Tftp.setLocalPath(dir);
+		this.op = config.getOp();
+		this.config = config;
+		this.requested = TftpOptions.request(config);
+		this.retries = config.getRetries();
+		this.pace = config.getPace();
 	}
 
 
@@ -49,7 +84,8 @@ public class TftpClient extends Thread {
 	 * it the InetAddress of TftpServer and the name of requested file.
 	 *
 	 * If an additional argument is provided, then sets it to the new output
-	 * directory to override the default.
+	 * directory to override the default. Any flags that follow are parsed by
+	 * {@link TftpConfig}.
 	 *
 	 * @param   args  	The arguments, user input from command line.
 	 */
@@ -62,22 +98,29 @@ public class TftpClient extends Thread {
 				InetAddress addr = InetAddress.getByName(args[0]);
 				String file = args[1];
 				String dir = Tftp.OUT_DIR;
+				int flags = 2;
 
 				/* Set a new folder name if desirded */
-				if (args.length > 2) {
+				if (args.length > 2 && !args[2].startsWith("-")) {
 					dir = args[2];
+					flags++;
 				}
 
-				TftpClient client = new TftpClient(addr, file, dir);
+				TftpConfig config = TftpConfig.parse(Arrays.copyOfRange(args, flags, args.length));
+				TftpLog.setLevel(config.getLog());
+
+				TftpClient client = new TftpClient(addr, file, dir, config);
 				client.start();
 				client.join(); /* Waits for the process to finish completely */
 
 			} catch (InterruptedException e) {
-				System.out.println("InterruptedException: " + e.getMessage());
+				TftpLog.error("InterruptedException: " + e.getMessage());
 			} catch (IOException e) {
-				System.out.println("IOException: " + e.getMessage());
-			}finally {
-				System.out.println("Closing TftpClient...\n");
+				TftpLog.error("IOException: " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+			} finally {
+				TftpLog.info("Closing TftpClient...\n");
 			}
 		} else {
 			System.out.println("Incorrect length of arguments...");
@@ -85,18 +128,45 @@ public class TftpClient extends Thread {
 			System.out.println("$ java TftpClient <IP Address> <File Name>\n");
 			System.out.println("To change the name of the directory:");
 			System.out.println("$ java TftpClient <IP Address> <File Name> <Output Folder>\n");
+			System.out.println("To upload a file from the directory instead:");
+			System.out.println("$ java TftpClient <IP Address> <File Name> -op put\n");
+			System.out.println("To request a larger block size:");
+			System.out.println("$ java TftpClient <IP Address> <File Name> -blksize 1468\n");
 		}
 	}
 
 
 	/**
-	 * Runs the TftpClient process on start.
+	 * Gets the time the first block of the download arrived, to measure how
+	 * long the request took to be answered.
 	 *
-	 * Opens a DatagramSocket in the try-with-resources block, then sends an RRQ
-	 * DatagramPacket to TftpServer to request the file.
+	 * @return  The long System.nanoTime of the first block, or 0 if none.
+	 */
+	public long getFirstBlock() {
+
+		return firstBlock;
+	}
+
+
+	/**
+	 * Gets the time the last block of the download was ACK'd, before the
+	 * dally that follows it.
+	 *
+	 * @return  The long System.nanoTime of the last ACK, or 0 if none.
+	 */
+	public long getLastBlock() {
+
+		return lastBlock;
+	}
+
+
+	/**
+	 * Runs the TftpClient process on start.
 	 *
-	 * Downloads the file to the specified target, and prints a message output
-	 * was successful.
+	 * Opens a DatagramSocket in the try-with-resources block, then requests
+	 * and downloads the file to the specified target, and prints a message output
+	 * was successful. With the put operation, uploads the file from the
+	 * directory instead.
 	 */
 	@Override
 	public void run() {
@@ -107,39 +177,89 @@ public class TftpClient extends Thread {
 			/* Resolve the local path for target download */
 			Path target = path.resolve(file);
 
-            System.out.println("\tYou requested:");
-            System.out.println("\tFile:\t" + file);
-            System.out.println("\tPath:\t" + target);
-            System.out.println("\nWaiting for download...\n");
+			if (op.equals(TftpConfig.PUT)) {
+				TftpLog.info("\tYou are uploading:");
+				TftpLog.info("\tFile:\t" + file);
+				TftpLog.info("\tPath:\t" + target);
+				TftpLog.info("\nWaiting for upload...\n");
+
+				/* Uploads the file and checks if succesful */
+				if (uploadFile(socket, target)) {
+					TftpLog.info("\nUpload complete!\n");
+				} else {
+					TftpLog.error("\nUpload failed...\n");
+				}
+				return;
+			}
 
-            /* Sends the request to TftpServer */
-            socket.send(Tftp.rrqPacket(file, addr));
+            TftpLog.info("\tYou requested:");
+            TftpLog.info("\tFile:\t" + file);
+            TftpLog.info("\tPath:\t" + target);
+            TftpLog.info("\nWaiting for download...\n");
+
+            /* Downloads the file through a channel with the nio engine */
+            boolean done;
+            if (config.getEngine().equals(TftpConfig.NIO)) {
+            	try (DatagramChannel channel = DatagramChannel.open()) {
+            		done = downloadFile(channel, target);
+            	}
+            } else {
+            	done = downloadFile(socket, target);
+            }
 
             /* Downloads the file and checks if succesful */
-            if (downloadFile(socket, target)) {
-            	System.out.println("\nDownload complete!\n");
+            if (done) {
+            	TftpLog.info("\nDownload complete!\n");
             } else {
-            	System.out.println("\nDownload failed...\n");
+            	TftpLog.error("\nDownload failed...\n");
             }
 		} catch (IOException e) {
-         	System.out.println("File Not Found: " + e.getMessage());
+         	TftpLog.error("File Not Found: " + e.getMessage());
         } catch (Exception e) {
-        	System.out.println("Fatal Error: " + e.getMessage());
+        	TftpLog.error("Fatal Error: " + e.getMessage());
         } finally {
-        	System.out.println("\nClosing TftpServer socket...");
+        	TftpLog.info("\nClosing TftpServer socket...");
         }
 	}
 
 
 	/**
-	 * Downloads the file through the socket and to the target.
+	 * Sends the RRQ, then downloads the file through the socket and to the
+	 * target.
 	 *
 	 * The file is downloaded through one block at a time, each on one iteration
 	 * of the infinite loop, from predefined blocks that were packaged by
 	 * TftpServer prior to transferring.
 	 *
 	 * TftpClient sends an ACK for the block received, which tells TftpServer
-	 * to send the next.
+	 * to send the next. If TftpServer answers the request with an OACK, the
+	 * options are checked and confirmed with an ACK of block 0 first.
+	 *
+	 * If TftpServer reports the size of the file with the tsize option, the
+	 * target is set to that length up front, so the file system can allocate
+	 * it in one go, and the progress is shown against the total. The progress
+	 * is printed by a {@link TftpProgress} on its own thread, and the download
+	 * only waits on the network, unless a pace is set to slow it down.
+	 *
+	 * With a window size above 1, TftpClient only ACKs the last block of each
+	 * window, or a short block that ends the file. A block out of order means
+	 * one was lost, so the last block received in order is ACK'd once, and
+	 * TftpServer resends the window from there. Once the short block is
+	 * ACK'd, TftpClient dallies for twice the timeout, and ACKs the block
+	 * again if it is repeated, as TftpServer resends it until the last ACK
+	 * arrives (RFC 1350).
+	 *
+	 * TftpServer answers from a port of its own, its transfer identifier
+	 * (TID). The first answer from the host of TftpServer sets the TID, and a
+	 * packet from any other port, such as a second worker started by a resent
+	 * RRQ, is answered with an ERROR of code 5 and otherwise ignored.
+	 *
+	 * If nothing arrives within the timeout, the last packet sent, the RRQ or
+	 * the last ACK, is sent again and the timeout is doubled, as many times
+	 * as the retries of the configuration. This recovers from a lost RRQ,
+	 * OACK, ACK or block, and from a stalled window as described by RFC 7440.
+	 * The timeout follows the round trip from each ACK to the next block, as
+	 * measured by a {@link TftpRtt}.
 	 *
 	 * @param   socket  The socket
 	 * @param   target  The target
@@ -148,89 +268,781 @@ public class TftpClient extends Thread {
 	 */
 	public boolean downloadFile(DatagramSocket socket, Path target) throws IOException {
 
+        TftpProgress progress = new TftpProgress(null, "Downloaded", TftpLog.INFO);
+
         try (
-        	FileOutputStream fos = new FileOutputStream(target.toFile());
+        	RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw");
+        	FileOutputStream fos = new FileOutputStream(raf.getFD());
         	BufferedOutputStream bos = new BufferedOutputStream(fos);
         ) {
-        	/* The packet that will receive the data */
-            DatagramPacket pkt = new DatagramPacket(new byte[Tftp.BUFFER], Tftp.BUFFER);
+        	raf.setLength(0);	/* Discards any earlier download */
 
-            int block = 0;
+        	/* The packet that will receive the data, of the largest block */
+        	int size = Tftp.BLOCK;
+        	if (requested.containsKey(TftpOptions.BLKSIZE)) {
+        		size = Math.max(size, Integer.parseInt(requested.get(TftpOptions.BLKSIZE)));
+        	}
+            DatagramPacket pkt = new DatagramPacket(new byte[size + Tftp.HEADER], size + Tftp.HEADER);
+            DatagramPacket ack = new DatagramPacket(new byte[Tftp.HEADER], Tftp.HEADER);	/* Reused for every ACK */
 
-            while (true) {
+            long block = 0;
+            int blksize = Tftp.BLOCK;	/* Until an OACK changes it */
+            int windowsize = 1;
+            TftpRtt rtt = new TftpRtt();	/* The wait for each packet */
+            long total = -1;		/* The amount of blocks, if tsize is known */
 
-            	socket.setSoTimeout(Tftp.WAIT); /* Waits until timeout limit */
-            	socket.receive(pkt); 			/* Receives a packet of data */
+            int received = 0;		/* Blocks received since the last ACK */
+            int timeouts = 0;		/* Timeouts in a row */
+            boolean gap = false;	/* True once a gap has been ACK'd */
+            SocketAddress tid = null;	/* The port TftpServer answers from */
 
-            	if (pkt.getLength() == 0) {
-            		System.out.println("\r\nTotal " + block + " packets received.\r\n");
-            		return true;
+            /* Sends the request to TftpServer, the first packet to resend */
+            DatagramPacket last = Tftp.rrqPacket(file, requested, addr, port);
+            socket.send(last);
+            rtt.sent(false);
+
+            while (true) {
+
+            	socket.setSoTimeout(rtt.getTimeout()); 	/* Waits about a round trip */
+            	pkt.setLength(pkt.getData().length);	/* Room for a whole block again */
+            	try {
+            		socket.receive(pkt); 		/* Receives a packet of data */
+            	} catch (SocketTimeoutException e) {
+            		if (++timeouts > retries) {
+            			throw e;
+            		}
+            		socket.send(last);		/* Resends the RRQ or the last ACK */
+            		rtt.backoff();	/* Waits twice as long for the resend */
+            		rtt.sent(true);
+            		received = 0;
+            		continue;
             	}
 
-            	InetAddress addr = pkt.getAddress();
-            	int port = pkt.getPort();
             	byte[] data = pkt.getData();	/* The array of all data */
-            	byte type = data[0]; 			/* The Op code byte */
+            	int length = pkt.getLength();	/* The bytes of this packet in it */
+            	int type = (length >= Tftp.OFFSET) ? Tftp.getOpcode(data) : -1;	/* The 2-byte Op code */
+
+            	/* The first answer from the host of TftpServer is its TID */
+            	if (tid == null && pkt.getAddress().equals(addr) && (type == Tftp.DATA || type == Tftp.OACK || type == Tftp.ERROR)) {
+            		tid = pkt.getSocketAddress();
+            		ack.setSocketAddress(tid);	/* Every ACK goes to it */
+            	}
+            	if (!fromTid(socket, pkt, type, tid)) {
+            		continue;
+            	}
+            	timeouts = 0;
 
             	/*
             	 * The following code handles the packet based on the Op Code.
             	 *
             	 * If a DATA packet, then calls the method to process the block.
-            	 * If an ACK packet, then assumes the file download is complete.
+            	 * If an OACK packet, then checks and confirms the options.
             	 * If an ERROR packet, then gets the message and prints it.
-            	 *
-            	 * Note: 	I have decided to exclude implementation of TID
-            	 * 			for the sake of simplicity. The server should
-            	 * 			be responsible for making sure the download is
-            	 * 			complete and isn't corrupted.
             	 */
-            	if (type == Tftp.DATA) {
+            	if (type == Tftp.DATA && length >= Tftp.HEADER) {
             		/* Calculates expected next based on the previous block */
-            		int next = block + 1;
-            		System.out.print("\t\rDownloaded " + next  + " packets...\r");
+            		long next = block + 1;
 
             		/* Get the next block number after attempting to process */
-            		block = processData(bos, data, next);
+            		block = processData(bos, data, length, next, blksize);
 
-            		/* Send an ACK of the block to get the next expected */
-	                socket.send(Tftp.ackPacket(block, addr, port));
+            		if (block == next) {
+            			if (block == 1) {
+            				firstBlock = System.nanoTime();
+            			}
+            			progress.update(block);
+            			rtt.received();
+            			gap = false;
+            			received++;
 
-	                Thread.sleep(Tftp.PAUSE); /* Pause to view the output */
+            			/* ACK at the end of a window, or of the file */
+            			if (received >= windowsize || length - Tftp.HEADER < blksize) {
+            				last = Tftp.ackPacket(Tftp.blockNumber(block, rollover), ack);
+            				socket.send(last);
+            				rtt.sent(false);
+            				received = 0;
+
+            				/* A short block ends the download (RFC 1350) */
+            				if (length - Tftp.HEADER < blksize) {
+            					progress.stop();
+            					TftpLog.info("\r\nTotal " + block + " packets received.\r\n");
+            					lastBlock = System.nanoTime();
+            					dally(socket, pkt, last, rtt.getTimeout() * 2);
+            					return true;
+            				}
+
+            				if (pace > 0) {
+            					Thread.sleep(pace);	/* Slows the download down */
+            				}
+            			}
+            		} else {
+            			/* ACK a repeat of the last block, or the first gap */
+            			boolean repeat = Tftp.getBlock(data) == Tftp.blockNumber(block, rollover);
+            			if (repeat || !gap) {
+            				last = Tftp.ackPacket(Tftp.blockNumber(block, rollover), ack);
+            				socket.send(last);
+            				rtt.sent(false);
+            				received = 0;
+            			}
+            			gap = gap || !repeat;
+            		}
+
+            	} else if (type == Tftp.OACK && block == 0) {
+            		try {
+            			Map<String, String> oack = Tftp.getOptions(data, Tftp.OFFSET, length);
+            			TftpOptions options = TftpOptions.accept(oack, requested);
+            			blksize = options.getBlksize();
+            			windowsize = options.getWindowsize();
+            			rtt = new TftpRtt(options);
+
+            			/* Preallocates the target to the size of the file */
+            			if (options.getTsize() >= 0) {
+            				raf.setLength(options.getTsize());
+            				total = Tftp.getTotalBlocks(options.getTsize(), blksize);
+            				progress.setTotal(total);
+            			}
+            			TftpLog.info("\tOptions:\t" + options.getAccepted() + "\n");
+            		} catch (IOException e) {
+            			socket.send(Tftp.errorPacket(e.getMessage(), pkt.getAddress(), pkt.getPort()));
+            			throw e;
+            		}
+
+            		/* Confirms the options with an ACK of block 0 */
+            		last = Tftp.ackPacket(0, ack);
+            		socket.send(last);
+            		rtt.sent(false);
 
             	} else if (type == Tftp.ERROR) {
-            		System.out.println("From TftpServer: " + Tftp.getString(data));
+            		TftpLog.error("From TftpServer: " + Tftp.getString(Arrays.copyOf(data, length), Tftp.HEADER));
             		return false;
             	}
             }
         } catch (InterruptedException e) {
             throw new IOException("Thread was interrupted unexpectedly.");
+       	} finally {
+       		progress.stop();
        	}
     }
 
 
+    /**
+     * Sends the RRQ, then downloads the file through the channel and to the
+     * target, without copying any block through the Java heap.
+     *
+     * This follows {@link #downloadFile(DatagramSocket socket, Path target)}
+     * step for step, but each packet is received into a direct ByteBuffer,
+     * and the bytes of a block are written from there to their place in the
+     * target, at its count times the block size, with a positional write on
+     * a FileChannel. The kernel copies each block into the buffer and out of
+     * it into the file, and nothing else copies it.
+     *
+     * As each block has its own place in the file, a block that arrives past
+     * a gap in the window is written at once, and kept in a BitSet the size
+     * of the window. The first gap is ACK'd as before, so TftpServer resends
+     * the window from there, and once the gap is filled the download moves on
+     * over the blocks already written. A window is ACK'd once it is complete.
+     * Blocks past a gap are only kept with a window of up to half the block
+     * numbers, which can't be mistaken for the blocks of an earlier window,
+     * and only blocks in order are taken across the first rollover, until the
+     * convention of TftpServer is known.
+     *
+     * The channel waits for each packet on a Selector, for the same timeout
+     * as the socket would.
+     *
+     * @param   channel The DatagramChannel, not connected, as TftpServer
+     *                  answers from another port than it listens on.
+     * @param   target  The Path to download the file to.
+     * @return  True if the download was successful, False otherwise.
+     * @throws  IOException
+     */
+    public boolean downloadFile(DatagramChannel channel, Path target) throws IOException {
+
+        TftpProgress progress = new TftpProgress(null, "Downloaded", TftpLog.INFO);
+
+        try (
+        	Selector selector = Selector.open();
+        	RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw");
+        	FileChannel out = raf.getChannel();
+        ) {
+        	raf.setLength(0);	/* Discards any earlier download */
+        	channel.configureBlocking(false);
+        	channel.register(selector, SelectionKey.OP_READ);
+
+        	/* The buffer that will receive the data, of the largest block */
+        	int size = Tftp.BLOCK;
+        	if (requested.containsKey(TftpOptions.BLKSIZE)) {
+        		size = Math.max(size, Integer.parseInt(requested.get(TftpOptions.BLKSIZE)));
+        	}
+        	ByteBuffer pkt = ByteBuffer.allocateDirect(size + Tftp.HEADER);
+        	ByteBuffer ack = ByteBuffer.allocateDirect(Tftp.HEADER);	/* Reused for every ACK */
+
+        	long block = 0;			/* The blocks written in order */
+        	long acked = 0;			/* The last block ACK'd */
+        	long end = -1;			/* The count of the last block, once it arrives */
+        	int blksize = Tftp.BLOCK;	/* Until an OACK changes it */
+        	int windowsize = 1;
+        	boolean ahead = true;	/* True if blocks past a gap are kept */
+        	BitSet held = new BitSet(windowsize);	/* Blocks written past a gap */
+        	TftpRtt rtt = new TftpRtt();	/* The wait for each packet */
+
+        	int timeouts = 0;		/* Timeouts in a row */
+        	boolean gap = false;	/* True once a gap has been ACK'd */
+        	SocketAddress tid = null;	/* The port TftpServer answers from */
+
+        	/* Sends the request to TftpServer, the first packet to resend */
+        	SocketAddress server = new InetSocketAddress(addr, port);
+        	DatagramPacket rrq = Tftp.rrqPacket(file, requested, addr, port);
+        	ByteBuffer last = ByteBuffer.wrap(rrq.getData(), 0, rrq.getLength());
+        	channel.send(last, server);
+        	rtt.sent(false);
+
+        	while (true) {
+
+        		SocketAddress from = receive(channel, selector, pkt, rtt.getTimeout());
+        		if (from == null) {
+        			if (++timeouts > retries) {
+        				throw new SocketTimeoutException("Receive timed out");
+        			}
+        			channel.send(last.rewind(), server);	/* Resends the RRQ or the last ACK */
+        			rtt.backoff();	/* Waits twice as long for the resend */
+        			rtt.sent(true);
+        			continue;
+        		}
+        		int length = pkt.position();
+        		int type = (length >= Tftp.OFFSET) ? pkt.getShort(0) & 0xFFFF : -1;
+
+        		/* The first answer from the host of TftpServer is its TID */
+        		if (tid == null && ((InetSocketAddress) from).getAddress().equals(addr)
+        				&& (type == Tftp.DATA || type == Tftp.OACK || type == Tftp.ERROR)) {
+        			tid = from;
+        			server = tid;	/* Every ACK goes to it */
+        		}
+        		if (!fromTid(channel, from, type, tid)) {
+        			continue;
+        		}
+        		timeouts = 0;
+
+        		if (type == Tftp.DATA && length >= Tftp.HEADER) {
+        			long next = block + 1;
+        			int number = pkt.getShort(2) & 0xFFFF;	/* The 2-byte block number */
+        			if (next == Tftp.MAX_BLOCK + 1 && number == Tftp.blockNumber(next, 1 - rollover)) {
+        				rollover = 1 - rollover;
+        			}
+        			long sequence = Tftp.getSequence(number, block, rollover);
+
+        			if (sequence == next) {
+        				write(out, pkt, length, sequence, blksize);
+        				if (length - Tftp.HEADER < blksize) {
+        					end = sequence;
+        				}
+
+        				/* Moves on over the blocks already written past the gap */
+        				block = next;
+        				while (block < end || end < 0) {
+        					int index = (int) ((block + 1) % windowsize);
+        					if (!held.get(index)) {
+        						break;
+        					}
+        					held.clear(index);
+        					block++;
+        				}
+
+        				if (next == 1) {
+        					firstBlock = System.nanoTime();
+        				}
+        				progress.update(block);
+        				rtt.received();
+        				gap = false;
+
+        				/* ACK at the end of a window, or of the file */
+        				if (block == acked + windowsize || block == end) {
+        					last = ackPacket(ack, Tftp.blockNumber(block, rollover));
+        					channel.send(last, server);
+        					rtt.sent(false);
+        					acked = block;
+
+        					/* The short block and every one before it are written */
+        					if (block == end) {
+        						progress.stop();
+        						TftpLog.info("\r\nTotal " + block + " packets received.\r\n");
+        						lastBlock = System.nanoTime();
+        						dally(channel, selector, pkt, last, server, rtt.getTimeout() * 2);
+        						return true;
+        					}
+
+        					if (pace > 0) {
+        						Thread.sleep(pace);	/* Slows the download down */
+        					}
+        				}
+        			} else {
+        				/* Writes a block past a gap in the window at its place */
+        				if (ahead && sequence > next && sequence <= acked + windowsize
+        						&& (sequence <= Tftp.MAX_BLOCK || block > Tftp.MAX_BLOCK)) {
+        					write(out, pkt, length, sequence, blksize);
+        					held.set((int) (sequence % windowsize));
+        					if (length - Tftp.HEADER < blksize) {
+        						end = sequence;
+        					}
+        				}
+
+        				/* ACK a repeat of the last block, or the first gap */
+        				boolean repeat = number == Tftp.blockNumber(block, rollover);
+        				if (repeat || !gap) {
+        					last = ackPacket(ack, Tftp.blockNumber(block, rollover));
+        					channel.send(last, server);
+        					rtt.sent(false);
+        					acked = block;
+        				}
+        				gap = gap || !repeat;
+        			}
+
+        		} else if (type == Tftp.OACK && block == 0) {
+        			byte[] data = new byte[length];
+        			pkt.get(0, data);
+        			try {
+        				Map<String, String> oack = Tftp.getOptions(data, Tftp.OFFSET, length);
+        				TftpOptions options = TftpOptions.accept(oack, requested);
+        				blksize = options.getBlksize();
+        				windowsize = options.getWindowsize();
+        				ahead = windowsize <= Tftp.MAX_BLOCK / 2;
+        				held = new BitSet(windowsize);
+        				rtt = new TftpRtt(options);
+
+        				/* Preallocates the target to the size of the file */
+        				if (options.getTsize() >= 0) {
+        					raf.setLength(options.getTsize());
+        					progress.setTotal(Tftp.getTotalBlocks(options.getTsize(), blksize));
+        				}
+        				TftpLog.info("\tOptions:\t" + options.getAccepted() + "\n");
+        			} catch (IOException e) {
+        				DatagramPacket error = Tftp.errorPacket(e.getMessage(), null, 0);
+        				channel.send(ByteBuffer.wrap(error.getData(), 0, error.getLength()), server);
+        				throw e;
+        			}
+
+        			/* Confirms the options with an ACK of block 0 */
+        			last = ackPacket(ack, 0);
+        			channel.send(last, server);
+        			rtt.sent(false);
+
+        		} else if (type == Tftp.ERROR) {
+        			byte[] data = new byte[length];
+        			pkt.get(0, data);
+        			TftpLog.error("From TftpServer: " + Tftp.getString(data, Tftp.HEADER));
+        			return false;
+        		}
+        	}
+        } catch (InterruptedException e) {
+        	throw new IOException("Thread was interrupted unexpectedly.");
+        } finally {
+        	progress.stop();
+        }
+    }
+
+
+    /**
+     * Waits a while after the last ACK of a download, and sends it again for
+     * each DATA packet that arrives meanwhile, as TftpServer resends its last
+     * window if the ACK was lost (RFC 1350).
+     *
+     * @param   socket  The DatagramSocket of the download.
+     * @param   pkt     The DatagramPacket to receive into.
+     * @param   last    The DatagramPacket of the last ACK.
+     * @param   wait    The int milliseconds to wait in all.
+     * @throws  IOException
+     */
+    private static void dally(DatagramSocket socket, DatagramPacket pkt, DatagramPacket last, int wait) throws IOException {
+
+    	long deadline = System.nanoTime() + wait * 1000000L;
+
+    	try {
+    		while (wait > 0) {
+    			socket.setSoTimeout(wait);
+    			pkt.setLength(pkt.getData().length);
+    			socket.receive(pkt);
+    			int type = (pkt.getLength() >= Tftp.OFFSET) ? Tftp.getOpcode(pkt.getData()) : -1;
+    			if (fromTid(socket, pkt, type, last.getSocketAddress()) && type == Tftp.DATA) {
+    				socket.send(last);
+    			}
+    			wait = (int) ((deadline - System.nanoTime()) / 1000000);
+    		}
+    	} catch (SocketTimeoutException e) {
+    		/* TftpServer has its ACK */
+    	}
+    }
+
+
+    /**
+     * Waits a while after the last ACK of a download on the channel, and
+     * sends it again for each DATA packet that arrives meanwhile.
+     *
+     * @see     #dally(DatagramSocket socket, DatagramPacket pkt, DatagramPacket last, int wait)
+     * @param   channel     The DatagramChannel of the download.
+     * @param   selector    The Selector the channel is registered with.
+     * @param   pkt         The ByteBuffer to receive into.
+     * @param   last        The ByteBuffer of the last ACK.
+     * @param   server      The SocketAddress the ACK is sent to.
+     * @param   wait        The int milliseconds to wait in all.
+     * @throws  IOException
+     */
+    private static void dally(DatagramChannel channel, Selector selector, ByteBuffer pkt, ByteBuffer last, SocketAddress server, int wait) throws IOException {
+
+    	long deadline = System.nanoTime() + wait * 1000000L;
+
+    	SocketAddress from;
+
+    	while (wait > 0 && (from = receive(channel, selector, pkt, wait)) != null) {
+    		int type = (pkt.position() >= Tftp.OFFSET) ? pkt.getShort(0) & 0xFFFF : -1;
+    		if (fromTid(channel, from, type, server) && type == Tftp.DATA) {
+    			channel.send(last.rewind(), server);
+    		}
+    		wait = (int) ((deadline - System.nanoTime()) / 1000000);
+    	}
+    }
+
+
+    /**
+     * Checks that a packet came from the TID of TftpServer. A packet from any
+     * other port is answered with an ERROR of code 5, as RFC 1350 asks, and
+     * is otherwise ignored, unless it is an ERROR itself.
+     *
+     * @param   socket  The DatagramSocket of the transfer.
+     * @param   pkt     The DatagramPacket received.
+     * @param   type    The int Op Code of the packet, or -1 if too short.
+     * @param   tid     The SocketAddress of TftpServer, or null if unknown.
+     * @return  True if the packet came from the TID, False otherwise.
+     * @throws  IOException
+     */
+    private static boolean fromTid(DatagramSocket socket, DatagramPacket pkt, int type, SocketAddress tid) throws IOException {
+
+    	if (pkt.getSocketAddress().equals(tid)) {
+    		return true;
+    	}
+    	if (type != Tftp.ERROR) {
+    		socket.send(Tftp.errorPacket(Tftp.UNKNOWN_TID, "Unknown transfer ID.", pkt.getAddress(), pkt.getPort()));
+    	}
+    	return false;
+    }
+
+
+    /**
+     * Checks that a packet on the channel came from the TID of TftpServer.
+     *
+     * @see     #fromTid(DatagramSocket socket, DatagramPacket pkt, int type, SocketAddress tid)
+     * @param   channel The DatagramChannel of the transfer.
+     * @param   from    The SocketAddress the packet came from.
+     * @param   type    The int Op Code of the packet, or -1 if too short.
+     * @param   tid     The SocketAddress of TftpServer, or null if unknown.
+     * @return  True if the packet came from the TID, False otherwise.
+     * @throws  IOException
+     */
+    private static boolean fromTid(DatagramChannel channel, SocketAddress from, int type, SocketAddress tid) throws IOException {
+
+    	if (from.equals(tid)) {
+    		return true;
+    	}
+    	if (type != Tftp.ERROR) {
+    		DatagramPacket error = Tftp.errorPacket(Tftp.UNKNOWN_TID, "Unknown transfer ID.", null, 0);
+    		channel.send(ByteBuffer.wrap(error.getData(), 0, error.getLength()), from);
+    	}
+    	return false;
+    }
+
+
+    /**
+     * Receives the next packet on the channel into the buffer, waiting on the
+     * Selector until one arrives or the wait runs out.
+     *
+     * @param   channel     The DatagramChannel, not blocking.
+     * @param   selector    The Selector the channel is registered with.
+     * @param   pkt         The ByteBuffer to receive into, from its start.
+     * @param   wait        The int milliseconds to wait in all.
+     * @return  The SocketAddress the packet came from, or null on a timeout.
+     * @throws  IOException
+     */
+    private static SocketAddress receive(DatagramChannel channel, Selector selector, ByteBuffer pkt, int wait) throws IOException {
+
+    	long deadline = System.nanoTime() + wait * 1000000L;
+    	SocketAddress from;
+
+    	pkt.clear();
+    	while ((from = channel.receive(pkt)) == null) {
+    		long left = (deadline - System.nanoTime()) / 1000000;
+    		if (left <= 0) {
+    			return null;
+    		}
+    		selector.select(IGNORE, left);
+    	}
+    	return from;
+    }
+
+
+    /**
+     * Writes the bytes of a DATA packet to the place of its block in the file.
+     *
+     * @param   out         The FileChannel of the target.
+     * @param   pkt         The direct ByteBuffer holding the packet.
+     * @param   length      The int length of the packet received.
+     * @param   sequence    The long count of the block, starting at 1.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @throws  IOException
+     */
+    private static void write(FileChannel out, ByteBuffer pkt, int length, long sequence, int blksize) throws IOException {
+
+    	long position = (sequence - 1) * blksize;
+    	pkt.limit(length).position(Tftp.HEADER);
+    	while (pkt.hasRemaining()) {
+    		position += out.write(pkt, position);
+    	}
+    }
+
+
+    /**
+     * Encodes an ACK into the buffer, ready to be sent on the channel.
+     *
+     * @param   ack     The ByteBuffer with room for a header.
+     * @param   number  The int block number to acknowledge.
+     * @return  The same ByteBuffer, from its start to its end.
+     */
+    private static ByteBuffer ackPacket(ByteBuffer ack, int number) {
+
+    	ack.clear();
+    	ack.putShort(0, Tftp.ACK);
+    	ack.putShort(2, (short) number);
+    	return ack;
+    }
+
+
+    /**
+     * Sends the WRQ, then uploads the file from the source through the socket.
+     *
+     * TftpServer answers the WRQ with an ACK of block 0, or with an OACK of
+     * the options it accepted, after which the blocks are sent. The tsize
+     * option is sent with the size of the file along with any other option,
+     * so TftpServer knows the total up front.
+     *
+     * Each block is read from the file straight into the packet just before
+     * it is sent, so only the current block is ever held in memory. With a
+     * window size above 1, that many blocks are sent back to back before
+     * waiting for an ACK, and the next window starts after the last block
+     * TftpServer ACK'd. An ACK that doesn't move the window on is a duplicate
+     * and is ignored (RFC 1123), the same as on TftpServer.
+     *
+     * The last block is shorter than the block size, with no data at all if
+     * the size of the file is a multiple of it, which tells TftpServer the
+     * upload is complete (RFC 1350). The upload is done once that block is
+     * ACK'd, after TftpServer has written the file to disk.
+     *
+     * The port TftpServer answers the WRQ from is the TID of the upload, as
+     * for a download, and packets from any other port are refused.
+     *
+     * If nothing arrives within the timeout, the WRQ or the window is sent
+     * again and the timeout is doubled, as many times as the retries of the
+     * configuration.
+     *
+     * @param   socket  The socket
+     * @param   source  The Path of the file to upload.
+     * @return  True if the upload was successful, False otherwise.
+     * @throws  IOException
+     */
+    public boolean uploadFile(DatagramSocket socket, Path source) throws IOException {
+
+        TftpProgress progress = new TftpProgress(null, "Uploaded", TftpLog.INFO);
+
+        try (TftpSource src = Tftp.openFile(source)) {
+
+            Map<String, String> requested = TftpOptions.request(config, src.size());
+
+            /* The packet that will receive the ACKs, or an OACK or ERROR */
+            DatagramPacket pkt = new DatagramPacket(new byte[Tftp.BUFFER], Tftp.BUFFER);
+            TftpRtt rtt = new TftpRtt();	/* The wait for each ACK */
+            TftpOptions options = new TftpOptions();	/* Until an OACK changes them */
+            int timeouts = 0;		/* Timeouts in a row */
+            SocketAddress tid = null;	/* The port TftpServer answers from */
+
+            /* Sends the request to TftpServer, until it answers */
+            DatagramPacket wrq = Tftp.wrqPacket(file, requested, addr, port);
+            socket.send(wrq);
+            rtt.sent(false);
+
+            while (true) {
+            	socket.setSoTimeout(rtt.getTimeout());
+            	pkt.setLength(pkt.getData().length);	/* Room for a whole packet again */
+            	try {
+            		socket.receive(pkt);
+            	} catch (SocketTimeoutException e) {
+            		if (++timeouts > retries) {
+            			throw e;
+            		}
+            		socket.send(wrq);		/* Resends the WRQ */
+            		rtt.backoff();
+            		rtt.sent(true);
+            		continue;
+            	}
+
+            	byte[] data = pkt.getData();
+            	int type = (pkt.getLength() >= Tftp.OFFSET) ? Tftp.getOpcode(data) : -1;
+
+            	/* The first answer from the host of TftpServer is its TID */
+            	if (tid == null && pkt.getAddress().equals(addr) && (type == Tftp.ACK || type == Tftp.OACK || type == Tftp.ERROR)) {
+            		tid = pkt.getSocketAddress();
+            	}
+            	if (!fromTid(socket, pkt, type, tid)) {
+            		continue;
+            	}
+            	timeouts = 0;
+
+            	if (type == Tftp.ACK && pkt.getLength() >= Tftp.HEADER && Tftp.getBlock(data) == 0) {
+            		break;
+            	} else if (type == Tftp.OACK) {
+            		try {
+            			Map<String, String> oack = Tftp.getOptions(data, Tftp.OFFSET, pkt.getLength());
+            			options = TftpOptions.accept(oack, requested);
+            			TftpLog.info("\tOptions:\t" + options.getAccepted() + "\n");
+            		} catch (IOException e) {
+            			socket.send(Tftp.errorPacket(e.getMessage(), pkt.getAddress(), pkt.getPort()));
+            			throw e;
+            		}
+            		break;
+            	} else if (type == Tftp.ERROR) {
+            		TftpLog.error("From TftpServer: " + Tftp.getString(Arrays.copyOf(data, pkt.getLength()), Tftp.HEADER));
+            		return false;
+            	}
+            }
+            rtt.received();
+            if (!options.getAccepted().isEmpty()) {
+            	rtt = new TftpRtt(options);
+            }
+
+            /* The blocks go to the port TftpServer answered from */
+            int blksize = options.getBlksize();
+            int windowsize = options.getWindowsize();
+            DatagramPacket packet = new DatagramPacket(new byte[blksize + Tftp.HEADER], blksize + Tftp.HEADER, tid);
+            ByteBuffer buf = ByteBuffer.wrap(packet.getData());
+
+            long total = Tftp.getTotalBlocks(src.size(), blksize);
+            long acked = 0;			/* The amount of blocks ACK'd, and the index */
+            boolean retry = false;	/* True if the window is being resent */
+            progress.setTotal(total);
+
+            while (timeouts <= retries) {
+
+            	long end = Math.min(acked + windowsize, total);
+            	for (long next = acked; next < end; next++) {
+            		packet.setLength(Tftp.dataPacket(src, next, blksize, rollover, buf));
+            		socket.send(packet);
+            	}
+            	rtt.sent(retry);
+
+            	long ack;			/* The count of the last block ACK'd */
+            	try {
+            		ack = receiveAck(socket, pkt, tid, acked, end, rtt.getTimeout());
+            	} catch (SocketTimeoutException e) {
+            		rtt.backoff();		/* Waits twice as long for the resend */
+            		retry = true;
+            		timeouts++;
+            		continue;
+            	}
+
+            	if (ack < 0) {
+            		TftpLog.error("From TftpServer: " + Tftp.getString(Arrays.copyOf(pkt.getData(), pkt.getLength()), Tftp.HEADER));
+            		return false;
+            	}
+            	progress.update(ack);
+            	if (ack == total) {
+            		TftpLog.info("\r\nTotal " + total + " packets sent.\r\n");
+            		return true;
+            	}
+            	rtt.received();
+            	acked = ack;		/* To send the next window over */
+            	retry = false;
+            	timeouts = 0;
+            }
+            return false;
+        } finally {
+        	progress.stop();
+        }
+    }
+
+
+    /**
+     * Waits for an ACK of any block after the first up to the last, or of the
+     * last block itself. Any other packet is a duplicate, and is ignored, and
+     * a packet from another port than the TID is answered with an ERROR.
+     *
+     * @param   socket  The DatagramSocket to receive through.
+     * @param   pkt     The DatagramPacket to receive each ACK into.
+     * @param   tid     The SocketAddress TftpServer answers from.
+     * @param   block   The long count of the last block ACK'd before.
+     * @param   end     The long count of the last block that was sent.
+     * @param   wait    The int milliseconds to wait in all.
+     * @return  The long count of the block ACK'd, or -1 for an ERROR.
+     * @throws  SocketTimeoutException if no such ACK arrived in time.
+     * @throws  IOException
+     */
+    private long receiveAck(DatagramSocket socket, DatagramPacket pkt, SocketAddress tid, long block, long end, int wait) throws IOException {
+
+    	long deadline = System.nanoTime() + wait * 1000000L;
+
+    	while (true) {
+    		socket.setSoTimeout(wait);
+    		pkt.setLength(pkt.getData().length);	/* Room for a whole packet again */
+    		socket.receive(pkt);
+
+    		byte[] data = pkt.getData();
+    		int type = (pkt.getLength() >= Tftp.OFFSET) ? Tftp.getOpcode(data) : -1;
+
+    		if (!fromTid(socket, pkt, type, tid)) {
+    			/* Not of this transfer */
+    		} else if (type == Tftp.ERROR) {
+    			return -1;
+    		} else if (type == Tftp.ACK && pkt.getLength() >= Tftp.HEADER) {
+    			long acked = Tftp.getSequence(Tftp.getBlock(data), block, rollover);
+    			if (acked > block && acked <= end) {
+    				return acked;
+    			}
+    		}
+    		wait = (int) Math.max((deadline - System.nanoTime()) / 1000000, 1);
+    	}
+    }
+
+
     /**
      * Processes the given block, if the block is the expected number.
      *
      * Checks if the received block is the expected next block, then writes the
-     * bytes of the file to the stream before returning the next block number.
-     * If not then skips the download and returns current expected block number.
+     * bytes of the file to the stream before returning the next block count.
+     * If not then skips the download and returns the count of the last block
+     * written, so that it is ACK'd again.
      *
-     * The start and range is based on {@link Tftp#HEADER_SIZE}
+     * The 2-byte block number is compared after rollover. The first time the
+     * count passes {@link Tftp#MAX_BLOCK}, either convention is accepted and
+     * the one TftpServer uses is kept for the rest of the download.
+     *
+     * Only the bytes of this packet are written, from {@link Tftp#HEADER} to
+     * its length, as the array is reused and holds whatever was received into
+     * it before past that length.
      *
      * @param   bos 		The BuffferedOutputStream to write the bytes to.
      * @param   data 		The full byte array of the packet to extract from.
-     * @param   next        The expected block number, the next one to download.
-     * @return  The int number of block received.
+     * @param   length      The int length of the packet received.
+     * @param   next        The expected block count, the next one to download.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @return  The long count of the last block written.
      * @throws  IOException
      */
-    private int processData(BufferedOutputStream bos, byte[] data, int next) throws IOException {
+    private long processData(BufferedOutputStream bos, byte[] data, int length, long next, int blksize) throws IOException {
+
+    	int received = Tftp.getBlock(data); 	/* The 2-byte block number */
+    	if (next == Tftp.MAX_BLOCK + 1 && received == Tftp.blockNumber(next, 1 - rollover)) {
+    		rollover = 1 - rollover;
+    	}
 
-    	int received = data[1] & 0xFF; 	/* Convert the block byte to an int */
-    	if (received != next) {
-    		return received;
+    	if (received != Tftp.blockNumber(next, rollover)) {
+    		return next - 1;
     	} else {
     		int start = Tftp.HEADER;
-    		int range = data.length - Tftp.HEADER;
+    		int range = Math.min(length - Tftp.HEADER, blksize);
 
     		bos.write(data, start, range);
     		return next;
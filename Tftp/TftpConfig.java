@@ -0,0 +1,385 @@
+import java.util.Arrays;
+
+
+/**
+ * TftpConfig class.
+ *
+ * Holds the settings that can be changed from the command line of the
+ * TftpServer and TftpClient programs. Every setting starts at the default
+ * given by the constants in {@link Tftp}, and is overridden by a flag of the
+ * form {@code -name value}.
+ *
+ * Most settings only apply to one of the programs. The options of RFC 2347,
+ * such as {@code -blksize}, apply to both: the TftpClient requests the value,
+ * and the TftpServer accepts up to the value.
+ *
+ * @see     Tftp
+ * @see     TftpServer
+ * @see     TftpClient
+ */
+public class TftpConfig {
+
+    public static final String PLATFORM = "platform";   /* Thread per session */
+    public static final String VIRTUAL = "virtual";     /* Java 21 virtual threads */
+
+    public static final String BLOCKING = "blocking";   /* TftpWorker sessions */
+    public static final String NIO = "nio";             /* TftpLoop event loop */
+
+    public static final String GET = "get";             /* Download with an RRQ */
+    public static final String PUT = "put";             /* Upload with a WRQ */
+
+    public static final String NONE = "none";           /* Never fsync an upload */
+    public static final String ACK = "ack";             /* Fsync before each ACK */
+    public static final String END = "end";             /* Fsync before the last ACK */
+
+    private int port = Tftp.PORT;
+    private String dir = Tftp.SRC_DIR;
+    private String threads = PLATFORM;
+    private String engine = BLOCKING;
+    private String op = GET;
+    private String fsync = END;
+    private int shards = 1;
+    private int rollover = Tftp.ROLLOVER;
+    private int retries = Tftp.ATTEMPTS;
+    private int pace;                                   /* 0 if not set */
+    private int log = TftpLog.INFO;
+    private int cache = Tftp.CACHE;
+    private int blksize;                                /* 0 if not set */
+    private int windowsize;                             /* 0 if not set */
+    private int timeout;                                /* 0 if not set */
+
+
+    /**
+     * Parses the command line flags into a new TftpConfig.
+     *
+     * @param   args    The arguments, user input from command line.
+     * @return  The TftpConfig with every given flag applied.
+     * @throws  IllegalArgumentException if a flag or its value is not valid.
+     */
+    public static TftpConfig parse(String[] args) {
+
+        TftpConfig config = new TftpConfig();
+
+        for (int i = 0; i < args.length; i += 2) {
+            String flag = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + flag);
+            }
+            String value = args[i + 1];
+
+            switch (flag) {
+                case "-port":
+                    config.port = parsePositive(flag, value);
+                    if (config.port > 0xFFFF) {
+                        throw new IllegalArgumentException("Port must be at most " + 0xFFFF);
+                    }
+                    break;
+                case "-dir":
+                    config.dir = value;
+                    break;
+                case "-threads":
+                    if (!value.equals(PLATFORM) && !value.equals(VIRTUAL)) {
+                        throw new IllegalArgumentException("Unknown thread mode " + value);
+                    }
+                    config.threads = value;
+                    break;
+                case "-engine":
+                    if (!value.equals(BLOCKING) && !value.equals(NIO)) {
+                        throw new IllegalArgumentException("Unknown engine " + value);
+                    }
+                    config.engine = value;
+                    break;
+                case "-op":
+                    if (!value.equals(GET) && !value.equals(PUT)) {
+                        throw new IllegalArgumentException("Unknown operation " + value);
+                    }
+                    config.op = value;
+                    break;
+                case "-fsync":
+                    if (!value.equals(NONE) && !value.equals(ACK) && !value.equals(END)) {
+                        throw new IllegalArgumentException("Unknown fsync policy " + value);
+                    }
+                    config.fsync = value;
+                    break;
+                case "-shards":
+                    config.shards = parsePositive(flag, value);
+                    break;
+                case "-rollover":
+                    if (!value.equals("0") && !value.equals("1")) {
+                        throw new IllegalArgumentException("Expected 0 or 1 for " + flag);
+                    }
+                    config.rollover = Integer.parseInt(value);
+                    break;
+                case "-retries":
+                    config.retries = parseNonNegative(flag, value);
+                    break;
+                case "-pace":
+                    config.pace = parsePositive(flag, value);
+                    break;
+                case "-log":
+                    config.log = Arrays.asList(TftpLog.LEVELS).indexOf(value);
+                    if (config.log < 0) {
+                        throw new IllegalArgumentException("Unknown log level " + value);
+                    }
+                    break;
+                case "-cache":
+                    config.cache = parsePositive(flag, value);
+                    break;
+                case "-blksize":
+                    config.blksize = parsePositive(flag, value);
+                    if (config.blksize < TftpOptions.MIN_BLKSIZE || config.blksize > TftpOptions.MAX_BLKSIZE) {
+                        throw new IllegalArgumentException("Block size must be from "
+                            + TftpOptions.MIN_BLKSIZE + " to " + TftpOptions.MAX_BLKSIZE);
+                    }
+                    break;
+                case "-windowsize":
+                    config.windowsize = parsePositive(flag, value);
+                    if (config.windowsize > TftpOptions.MAX_WINDOWSIZE) {
+                        throw new IllegalArgumentException("Window size must be at most "
+                            + TftpOptions.MAX_WINDOWSIZE);
+                    }
+                    break;
+                case "-timeout":
+                    config.timeout = parsePositive(flag, value);
+                    if (config.timeout > TftpOptions.MAX_TIMEOUT) {
+                        throw new IllegalArgumentException("Timeout must be at most "
+                            + TftpOptions.MAX_TIMEOUT + " seconds");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown flag " + flag);
+            }
+        }
+        return config;
+    }
+
+
+    /**
+     * Gets the port the TftpServer listens for requests on, and the TftpClient
+     * sends its request to.
+     *
+     * @return  The int port, {@link Tftp#PORT} by default.
+     */
+    public int getPort() {
+
+        return port;
+    }
+
+
+    /**
+     * Gets the local directory the TftpServer serves files from.
+     *
+     * @return  The String directory name, {@link Tftp#SRC_DIR} by default.
+     */
+    public String getDir() {
+
+        return dir;
+    }
+
+
+    /**
+     * Gets the thread mode that runs each session.
+     *
+     * @return  Either {@link #PLATFORM} or {@link #VIRTUAL}.
+     */
+    public String getThreads() {
+
+        return threads;
+    }
+
+
+    /**
+     * Gets the engine that serves the requests. The TftpClient downloads
+     * through a DatagramChannel and a FileChannel with {@link #NIO}, or else
+     * through a DatagramSocket and a stream.
+     *
+     * @return  Either {@link #BLOCKING} or {@link #NIO}.
+     */
+    public String getEngine() {
+
+        return engine;
+    }
+
+
+    /**
+     * Gets the operation of the TftpClient, to download the file from the
+     * TftpServer or to upload it.
+     *
+     * @return  Either {@link #GET} or {@link #PUT}.
+     */
+    public String getOp() {
+
+        return op;
+    }
+
+
+    /**
+     * Gets when the TftpServer forces an upload to disk. {@link #END} forces
+     * the file once, before the last block is ACK'd, so that an upload the
+     * TftpClient sees complete survives a crash. {@link #ACK} forces it before
+     * every ACK as well, so no ACK'd block is ever lost, at the cost of a
+     * write to disk each window. {@link #NONE} leaves it to the file system.
+     *
+     * @return  Either {@link #NONE}, {@link #ACK} or {@link #END}.
+     */
+    public String getFsync() {
+
+        return fsync;
+    }
+
+
+    /**
+     * Gets the amount of event loops that share {@link Tftp#PORT}.
+     *
+     * @return  The int amount of TftpLoop shards, 1 by default.
+     */
+    public int getShards() {
+
+        return shards;
+    }
+
+
+    /**
+     * Gets the block number that follows {@link Tftp#MAX_BLOCK}.
+     *
+     * @return  The int block number to roll over to, 0 or 1.
+     */
+    public int getRollover() {
+
+        return rollover;
+    }
+
+
+    /**
+     * Gets the amount of times a packet is resent after a timeout, before
+     * the transfer is given up. Both programs resend their last packet: the
+     * TftpServer its OACK or window of blocks, the TftpClient its RRQ or ACK.
+     *
+     * @return  The int amount of retries, {@link Tftp#ATTEMPTS} by default.
+     */
+    public int getRetries() {
+
+        return retries;
+    }
+
+
+    /**
+     * Gets the pause the TftpClient takes after each ACK, to slow a download
+     * down on purpose, such as to watch its progress.
+     *
+     * @return  The int pause in milliseconds, or 0 if not set.
+     */
+    public int getPace() {
+
+        return pace;
+    }
+
+
+    /**
+     * Gets the level of the messages to print, which the TftpServer raises to
+     * see the progress of each transfer, or lowers to print nothing at all.
+     *
+     * @return  The int level, {@link TftpLog#INFO} by default.
+     */
+    public int getLog() {
+
+        return log;
+    }
+
+
+    /**
+     * Gets the size of the TftpServer's cache of the files requested most.
+     *
+     * @return  The long size in bytes, {@link Tftp#CACHE} megabytes by default.
+     */
+    public long getCache() {
+
+        return cache * 1024L * 1024L;
+    }
+
+
+    /**
+     * Gets the block size of the blksize option, RFC 2348.
+     *
+     * The TftpClient requests this size, and the TftpServer accepts sizes up
+     * to it, such as the path MTU less the IP and UDP headers.
+     *
+     * @return  The int block size, or 0 if not set.
+     */
+    public int getBlksize() {
+
+        return blksize;
+    }
+
+
+    /**
+     * Gets the window size of the windowsize option, RFC 7440.
+     *
+     * The TftpClient requests this size, and the TftpServer accepts sizes up
+     * to it.
+     *
+     * @return  The int window size, or 0 if not set.
+     */
+    public int getWindowsize() {
+
+        return windowsize;
+    }
+
+
+    /**
+     * Gets the timeout of the timeout option, RFC 2349.
+     *
+     * Only the TftpClient requests a timeout. The TftpServer accepts any
+     * valid timeout that is requested.
+     *
+     * @return  The int timeout in seconds, or 0 if not set.
+     */
+    public int getTimeout() {
+
+        return timeout;
+    }
+
+
+    /**
+     * Parses the value of a flag that can be 0 or a positive int.
+     *
+     * @param   flag    The String flag, for the error message.
+     * @param   value   The String value to parse.
+     * @return  The int value, 0 or greater.
+     * @throws  IllegalArgumentException if the value is negative or not an int.
+     */
+    private static int parseNonNegative(String flag, String value) {
+
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            /* Falls through to the error below */
+        }
+        throw new IllegalArgumentException("Expected 0 or a positive number for " + flag);
+    }
+
+
+    /**
+     * Parses the value of a flag that must be a positive int.
+     *
+     * @param   flag    The String flag, for the error message.
+     * @param   value   The String value to parse.
+     * @return  The int value, greater than 0.
+     * @throws  IllegalArgumentException if the value is not a positive int.
+     */
+    private static int parsePositive(String flag, String value) {
+
+        try {
+            int n = Integer.parseInt(value);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            /* Falls through to the error below */
+        }
+        throw new IllegalArgumentException("Expected a positive number for " + flag);
+    }
+}
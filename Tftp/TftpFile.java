@@ -0,0 +1,95 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * TftpFile class.
+ *
+ * A {@link TftpSource} that is read one block at a time from disk, instead
+ * of being loaded whole.
+ *
+ * Each block is read with a positional read on a FileChannel, so a session
+ * only holds the block it is about to send, and any number of sessions can
+ * read the same file without sharing a file position.
+ *
+ * @see     Tftp
+ * @see     TftpWorker
+ * @see     TftpSession
+ */
+public class TftpFile implements TftpSource {
+
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * TftpFile constructor.
+     * Opens the file for reading.
+     *
+     * @param   filePath    The Path that describes where the file is located.
+     * @throws  IOException
+     */
+    public TftpFile(Path filePath) throws IOException {
+
+        this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+
+    /**
+     * Gets the size of the file when it was opened.
+     *
+     * @return  The long size of the file in bytes.
+     */
+    @Override
+    public long size() {
+
+        return size;
+    }
+
+
+    /**
+     * Reads the bytes of one block into the buffer, at its position.
+     *
+     * @param   block   The long index of the block, starting at 0.
+     * @param   blksize The int amount of file bytes in each block.
+     * @param   dst     The ByteBuffer to read into, with room for the block.
+     * @return  The int amount of bytes read, less than a full block if last.
+     * @throws  IOException
+     */
+    @Override
+    public int read(long block, int blksize, ByteBuffer dst) throws IOException {
+
+        long position = block * blksize;
+        int length = (int) Math.min(blksize, size - position);
+
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position + length - dst.remaining());
+                if (read < 0) {
+                    throw new EOFException("File was truncated while reading.");
+                }
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return length;
+    }
+
+
+    /**
+     * Closes the FileChannel of this file.
+     *
+     * @throws  IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        channel.close();
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * TftpFrames class.
+ *
+ * Every DATA packet of a file, encoded once for one block size and shared by
+ * every session that sends the file with it.
+ *
+ * A file held by the {@link TftpCache} would otherwise be encoded again into
+ * a packet buffer for each block of each session, though each client of the
+ * same file is sent the same packets. Here the packets are laid out back to
+ * back in one direct ByteBuffer, with a header stamped on each block, so a
+ * session hands a slice of it straight to its channel. As the buffer lives
+ * outside of the Java heap, the channel sends from it without copying it
+ * into a buffer of its own first.
+ *
+ * The block numbers are stamped as they roll over, which is the same for
+ * every session of a server, so the frames are only kept per block size and
+ * rollover. The buffer is never written to once built.
+ *
+ * @see     TftpCache
+ * @see     TftpSession
+ */
+public class TftpFrames {
+
+    private final ByteBuffer frames;    /* Every packet, read only */
+    private final int blksize;          /* The file bytes in each block */
+    private final int stride;           /* The bytes between two packets */
+    private final long size;            /* The size of the file framed */
+
+    /**
+     * TftpFrames constructor.
+     * Encodes every block of the file.
+     *
+     * @param   source      The TftpSource to read the blocks from.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @param   rollover    The int block number to roll over to, 0 or 1.
+     * @throws  IOException
+     */
+    public TftpFrames(TftpSource source, int blksize, int rollover) throws IOException {
+
+        this.blksize = blksize;
+        this.stride = blksize + Tftp.HEADER;
+        this.size = source.size();
+
+        long total = Tftp.getTotalBlocks(size, blksize);
+        long weight = weigh(size, blksize);
+        if (weight > TftpCache.MAX_HELD) {
+            throw new IOException("File is too large to be framed.");
+        }
+        ByteBuffer all = ByteBuffer.allocateDirect((int) weight);
+        ByteBuffer slot = all.duplicate();
+
+        for (long block = 0; block < total; block++) {
+            int start = (int) (block * stride);
+            slot.limit(start + stride).position(start);
+            Tftp.dataPacket(source, block, blksize, rollover, slot.slice());
+        }
+        this.frames = all.asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Gets the bytes that the frames of a file would take.
+     *
+     * @param   size        The long size of the file in bytes.
+     * @param   blksize     The int amount of file bytes in each block.
+     * @return  The long amount of bytes of every packet of the file.
+     */
+    public static long weigh(long size, int blksize) {
+
+        return Tftp.getTotalBlocks(size, blksize) * (blksize + Tftp.HEADER);
+    }
+
+
+    /**
+     * Gets the bytes that the frames take.
+     *
+     * @return  The long amount of bytes held.
+     */
+    public long weight() {
+
+        return frames.capacity();
+    }
+
+
+    /**
+     * Gets a view of the frames for one session, which moves over them one
+     * packet at a time.
+     *
+     * @return  The ByteBuffer view, to be passed to {@link #frame}.
+     */
+    public ByteBuffer view() {
+
+        return frames.duplicate();
+    }
+
+
+    /**
+     * Moves the view onto the packet of one block, ready to be sent.
+     *
+     * @param   block   The long index of the block, starting at 0.
+     * @param   view    The ByteBuffer view of this session.
+     * @return  The int length of the packet.
+     */
+    public int frame(long block, ByteBuffer view) {
+
+        int start = (int) (block * stride);
+        int length = Tftp.HEADER + (int) Math.min(blksize, size - block * blksize);
+
+        view.limit(start + length).position(start);
+        return length;
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+
+/**
+ * TftpLoad class.
+ *
+ * A load test of a whole TftpServer, served and downloaded over the loopback
+ * interface in one JVM, to tell whether a change to the server helps or hurts
+ * many clients downloading at once, such as a room of machines booting.
+ *
+ * The TftpServer is started on a free ephemeral port, serving synthetic files
+ * of random bytes from a temporary directory. For each combination of file
+ * size, amount of clients, block size and window size, that many clients
+ * start at once, and each downloads the file a few times in a row with a
+ * TftpClient. Each combination reports:
+ *
+ *      MB/s        The bytes downloaded by every client, per second.
+ *      xfer/s      The downloads finished per second.
+ *      p50 - p999  The time each download took to its last ACK, in
+ *                  milliseconds, without the dally after it.
+ *      first       The time until the first block of each download arrived.
+ *      failed      The downloads that did not complete.
+ *      corrupt     With {@code -verify}, the downloads that completed with a
+ *                  SHA-256 digest other than that of the file served, which
+ *                  are also counted as failed.
+ *
+ * Every flag of the sweep takes a comma separated list of values. The flags
+ * after {@code --} are passed to the TftpServer, such as its engine:
+ *
+ *      java TftpLoad [-size 1M,16M] [-clients 1,8,32] [-blksize 512,1428]
+ *                    [-windowsize 1,8] [-transfers 4] [-- -engine nio]
+ *
+ * {@code -client nio} has the clients download through a DatagramChannel
+ * and a FileChannel, instead of a DatagramSocket and a stream. {@code -verify}
+ * checks every download against the file it was served from, so that a
+ * faster path is shown to write the same bytes. The digest is taken once
+ * the download is timed, and adds nothing to its time.
+ *
+ * The flags of a {@link TftpProxy}, such as {@code -loss 0.01 -delay 20},
+ * put one between the clients and the TftpServer, so the MB/s measured is
+ * the goodput of the transfers under those conditions.
+ *
+ * Both programs run with the log off, and the files are deleted on exit.
+ *
+ * @see     TftpServer
+ * @see     TftpClient
+ */
+public class TftpLoad {
+
+    public static final String SIZES = "1M";            /* Default file sizes */
+    public static final String CLIENTS = "1,8,32";      /* Default client counts */
+    public static final String BLKSIZES = "512,1428";   /* Default block sizes */
+    public static final String WINDOWSIZES = "1,8";     /* Default window sizes */
+    public static final int TRANSFERS = 4;              /* Downloads per client */
+
+    private final InetAddress addr = InetAddress.getLoopbackAddress();
+    private final Path root;                            /* The temporary directory */
+    private final int port;                             /* The port of the server or proxy */
+    private final int transfers;
+    private final String engine;                        /* The engine of the clients */
+    private final boolean verify;                       /* True to check each download */
+    private final Map<String, byte[]> digests;          /* The SHA-256 of each file */
+
+    /**
+     * TftpLoad constructor.
+     *
+     * @param   root        The Path of the temporary directory.
+     * @param   port        The int port the clients send their requests to.
+     * @param   transfers   The int amount of downloads by each client.
+     * @param   engine      The String engine of the clients, blocking or nio.
+     * @param   verify      True to check the SHA-256 digest of each download.
+     */
+    public TftpLoad(Path root, int port, int transfers, String engine, boolean verify) {
+
+        this.root = root;
+        this.port = port;
+        this.transfers = transfers;
+        this.engine = engine;
+        this.verify = verify;
+        this.digests = new HashMap<>();
+    }
+
+
+    /**
+     * Entry point main.
+     * Starts the TftpServer, runs every combination, then stops it.
+     *
+     * @param   args    The flags of the sweep, then {@code --} and the flags
+     *                  of the TftpServer.
+     */
+    public static void main(String[] args) {
+
+        int split = Arrays.asList(args).indexOf("--");
+        String[] flags = (split < 0) ? args : Arrays.copyOfRange(args, 0, split);
+        String[] extra = (split < 0) ? new String[0] : Arrays.copyOfRange(args, split + 1, args.length);
+
+        String sizes = SIZES, clients = CLIENTS, blksizes = BLKSIZES, windowsizes = WINDOWSIZES;
+        int transfers = TRANSFERS;
+        String engine = TftpConfig.BLOCKING;
+        boolean verify = false;
+        double loss = 0, dup = 0, reorder = 0;
+        int delay = 0, jitter = 0;
+        long seed = 1;
+        Path root = null;
+        TftpProxy proxy = null;
+
+        try {
+            for (int i = 0; i < flags.length; i += 2) {
+                if (flags[i].equals("-verify")) {
+                    verify = true;      /* The only flag without a value */
+                    i--;
+                    continue;
+                }
+                if (i + 1 == flags.length) {
+                    throw new IllegalArgumentException("Missing value for " + flags[i]);
+                }
+                switch (flags[i]) {
+                    case "-size":       sizes = flags[i + 1]; break;
+                    case "-clients":    clients = flags[i + 1]; break;
+                    case "-blksize":    blksizes = flags[i + 1]; break;
+                    case "-windowsize": windowsizes = flags[i + 1]; break;
+                    case "-transfers":  transfers = Integer.parseInt(flags[i + 1]); break;
+                    case "-client":     engine = flags[i + 1]; break;
+                    case "-loss":       loss = Double.parseDouble(flags[i + 1]); break;
+                    case "-dup":        dup = Double.parseDouble(flags[i + 1]); break;
+                    case "-reorder":    reorder = Double.parseDouble(flags[i + 1]); break;
+                    case "-delay":      delay = Integer.parseInt(flags[i + 1]); break;
+                    case "-jitter":     jitter = Integer.parseInt(flags[i + 1]); break;
+                    case "-seed":       seed = Long.parseLong(flags[i + 1]); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown flag " + flags[i]);
+                }
+            }
+
+            TftpLog.setLevel(TftpLog.OFF);
+            root = Files.createTempDirectory("TftpLoad");
+            int port = freePort();
+
+            String[] base = {"-port", String.valueOf(port), "-dir", root.resolve("server").toString(), "-log", "off"};
+            String[] serverArgs = Stream.concat(Arrays.stream(base), Arrays.stream(extra)).toArray(String[]::new);
+            TftpServer server = new TftpServer(InetAddress.getLoopbackAddress(), TftpConfig.parse(serverArgs));
+            server.start();
+
+            /* Clients go through the proxy, if any conditions are set */
+            int target = port;
+            if (loss > 0 || dup > 0 || reorder > 0 || delay > 0 || jitter > 0) {
+                proxy = new TftpProxy(0, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    loss, dup, reorder, delay, jitter, seed);
+                proxy.start();
+                target = proxy.getPort();
+            }
+
+            TftpLoad load = new TftpLoad(root, target, transfers, engine, verify);
+            System.out.printf("%10s %7s %7s %6s %9s %8s %8s %8s %8s %8s %8s %6s %7s%n", "size", "clients", "blksize",
+                "window", "MB/s", "xfer/s", "p50", "p99", "p999", "first50", "first99", "failed", "corrupt");
+
+            for (long size : parseList(sizes)) {
+                String name = load.createFile(size);
+                for (long n : parseList(clients)) {
+                    for (long blksize : parseList(blksizes)) {
+                        for (long windowsize : parseList(windowsizes)) {
+                            load.run(name, size, (int) n, (int) blksize, (int) windowsize);
+                        }
+                    }
+                }
+            }
+
+            server.shutdown();
+            server.join();
+            if (proxy != null) {
+                System.out.println(proxy.getStats());
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: $ java TftpLoad [-size 1M,16M] [-clients 1,8,32] [-blksize 512,1428] [-windowsize 1,8] [-transfers N] [-client blocking|nio] [-verify] [-loss P] [-dup P] [-reorder P] [-delay ms] [-jitter ms] [-seed N] [-- server flags]");
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("InterruptedException: " + e.getMessage());
+        } finally {
+            if (proxy != null) {
+                proxy.close();
+            }
+            delete(root);
+        }
+    }
+
+
+    /**
+     * Runs one combination: starts the clients at once, waits for every
+     * download, then prints the throughput and latencies.
+     *
+     * @param   name        The String name of the file to download.
+     * @param   size        The long size of the file in bytes.
+     * @param   clients     The int amount of clients at once.
+     * @param   blksize     The int block size each client requests.
+     * @param   windowsize  The int window size each client requests.
+     * @throws  IOException
+     * @throws  InterruptedException
+     */
+    public void run(String name, long size, int clients, int blksize, int windowsize) throws IOException, InterruptedException {
+
+        TftpConfig config = TftpConfig.parse(new String[] {"-port", String.valueOf(port),
+            "-blksize", String.valueOf(blksize), "-windowsize", String.valueOf(windowsize), "-engine", engine, "-log", "off"});
+
+        long[] latency = new long[clients * transfers];    /* -1 if failed, -2 if corrupt */
+        long[] first = new long[clients * transfers];
+        CountDownLatch ready = new CountDownLatch(1);
+        Thread[] threads = new Thread[clients];
+
+        for (int c = 0; c < clients; c++) {
+            int index = c;
+            threads[c] = new Thread(() -> download(name, config, index, ready, latency, first), "TftpLoad-" + c);
+            threads[c].start();
+        }
+
+        long start = System.nanoTime();
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] done = Arrays.stream(latency).filter(t -> t >= 0).sorted().toArray();
+        long[] firsts = Arrays.stream(first).filter(t -> t >= 0).sorted().toArray();
+
+        long corrupt = Arrays.stream(latency).filter(t -> t == -2).count();
+
+        System.out.printf("%10s %7d %7d %6d %9.1f %8.1f %8.2f %8.2f %8.2f %8.2f %8.2f %6d %7s%n", formatSize(size),
+            clients, blksize, windowsize, done.length * size / seconds / 1e6, done.length / seconds,
+            percentile(done, 0.5), percentile(done, 0.99), percentile(done, 0.999),
+            percentile(firsts, 0.5), percentile(firsts, 0.99), latency.length - done.length,
+            verify ? String.valueOf(corrupt) : "-");
+    }
+
+
+    /**
+     * Downloads the file as one client, as many times as the transfers, once
+     * every client is ready to start.
+     *
+     * @param   name        The String name of the file to download.
+     * @param   config      The TftpConfig of the clients.
+     * @param   client      The int index of the client.
+     * @param   ready       The CountDownLatch that starts every client at once.
+     * @param   latency     The long array of the time each download took.
+     * @param   first       The long array of the time to each first block.
+     */
+    private void download(String name, TftpConfig config, int client, CountDownLatch ready, long[] latency, long[] first) {
+
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        Path dir = root.resolve("client" + client);
+        for (int t = 0; t < transfers; t++) {
+            int index = client * transfers + t;
+            latency[index] = -1;
+            first[index] = -1;
+
+            try (
+                DatagramSocket socket = new DatagramSocket();
+                DatagramChannel channel = DatagramChannel.open();
+            ) {
+                TftpClient tftp = new TftpClient(addr, name, dir.toString(), config);
+                long start = System.nanoTime();
+
+                boolean done = engine.equals(TftpConfig.NIO)
+                    ? tftp.downloadFile(channel, dir.resolve(name))
+                    : tftp.downloadFile(socket, dir.resolve(name));
+                if (done) {
+                    latency[index] = tftp.getLastBlock() - start;   /* Not the dally */
+                    first[index] = tftp.getFirstBlock() - start;
+
+                    if (verify && !Arrays.equals(sha256(dir.resolve(name)), digests.get(name))) {
+                        latency[index] = -2;
+                        first[index] = -1;
+                    }
+                }
+            } catch (IOException e) {
+                /* Counted as failed */
+            }
+        }
+    }
+
+
+    /**
+     * Creates a file of random bytes in the directory of the TftpServer.
+     *
+     * @param   size    The long size of the file in bytes.
+     * @return  The String name of the file.
+     * @throws  IOException
+     */
+    private String createFile(long size) throws IOException {
+
+        String name = "load-" + size + ".bin";
+        Path server = Files.createDirectories(root.resolve("server"));
+        Random random = new Random(size);
+        byte[] chunk = new byte[1 << 20];
+        MessageDigest digest = sha256();
+
+        try (OutputStream out = Files.newOutputStream(server.resolve(name))) {
+            for (long left = size; left > 0; left -= chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, left));
+                digest.update(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+        }
+        digests.put(name, digest.digest());
+        return name;
+    }
+
+
+    /**
+     * Gets the SHA-256 digest of a file that was downloaded.
+     *
+     * @param   path    The Path of the file.
+     * @return  The byte array of the digest.
+     * @throws  IOException
+     */
+    private static byte[] sha256(Path path) throws IOException {
+
+        MessageDigest digest = sha256();
+        byte[] chunk = new byte[1 << 16];
+
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                digest.update(chunk, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+
+
+    /**
+     * Creates a new SHA-256 MessageDigest.
+     *
+     * @return  The MessageDigest, which every JVM is required to support.
+     */
+    private static MessageDigest sha256() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Finds a port that is free on this machine, by binding to port 0.
+     *
+     * @return  The int ephemeral port the system picked.
+     * @throws  IOException
+     */
+    private static int freePort() throws IOException {
+
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+
+    /**
+     * Gets a percentile of sorted times, in milliseconds.
+     *
+     * @param   sorted  The long array of times in nanoseconds, sorted.
+     * @param   q       The double fraction, such as 0.99.
+     * @return  The double time in milliseconds, or 0 if there are none.
+     */
+    private static double percentile(long[] sorted, double q) {
+
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+
+    /**
+     * Parses a comma separated list of sizes, each with an optional K, M or
+     * G suffix.
+     *
+     * @param   list    The String list, like "512,1428" or "1M,16M".
+     * @return  The long values, in order.
+     * @throws  IllegalArgumentException if a value is not a positive number.
+     */
+    private static long[] parseList(String list) {
+
+        String[] items = list.split(",");
+        long[] values = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i].trim().toUpperCase();
+            int shift = item.endsWith("K") ? 10 : item.endsWith("M") ? 20 : item.endsWith("G") ? 30 : 0;
+            if (shift > 0) {
+                item = item.substring(0, item.length() - 1);
+            }
+            try {
+                values[i] = Long.parseLong(item) << shift;
+            } catch (NumberFormatException e) {
+                values[i] = -1;
+            }
+            if (values[i] <= 0) {
+                throw new IllegalArgumentException("Expected a positive number in " + list);
+            }
+        }
+        return values;
+    }
+
+
+    /**
+     * Formats a size in bytes with the largest suffix that divides it.
+     *
+     * @param   size    The long size in bytes.
+     * @return  The String size, like "16M".
+     */
+    private static String formatSize(long size) {
+
+        String[] suffixes = {"", "K", "M", "G"};
+        int i = 0;
+        while (i < 3 && size % 1024 == 0 && size > 0) {
+            size /= 1024;
+            i++;
+        }
+        return size + suffixes[i];
+    }
+
+
+    /**
+     * Deletes the temporary directory and everything in it.
+     *
+     * @param   root    The Path of the directory, or null if none was made.
+     */
+    private static void delete(Path root) {
+
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            List<Path> all = new ArrayList<>();
+            paths.forEach(all::add);
+            all.sort(Comparator.reverseOrder());    /* Children before parents */
+            for (Path path : all) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not delete " + root + ": " + e.getMessage());
+        }
+    }
+}
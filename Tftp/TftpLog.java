@@ -0,0 +1,276 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * TftpLog class.
+ *
+ * Writes the messages of TftpServer and TftpClient to the console from a
+ * background thread, so that a transfer never waits on the console.
+ *
+ * A message is put in a bounded ring buffer without taking a lock, as
+ * described by Dmitry Vyukov's bounded queue: each slot has a sequence number,
+ * and a thread claims the slot at the tail with a compare-and-set, then
+ * publishes its message by moving the sequence of the slot on. The thread of
+ * the log is the only reader. If the ring is full the message is dropped and
+ * counted, rather than the sender being made to wait.
+ *
+ * The progress of each transfer is not logged per block. The transfer keeps
+ * a {@link TftpProgress} up to date, and the thread of the log samples every
+ * one that is tracked each {@link #INTERVAL} milliseconds.
+ *
+ * Each message has a level, and messages above the level set are discarded
+ * before they are queued. With the level {@link #OFF}, nothing is printed.
+ *
+ * @see     TftpProgress
+ */
+public class TftpLog {
+
+    public static final int OFF = 0;            /* Prints nothing */
+    public static final int ERROR = 1;          /* Failed transfers */
+    public static final int INFO = 2;           /* Requests and transfers */
+    public static final int DEBUG = 3;          /* Retries, server progress */
+
+    public static final String[] LEVELS = {"off", "error", "info", "debug"};
+
+    public static final int CAPACITY = 1024;    /* Messages held, a power of 2 */
+    public static final int INTERVAL = 250;     /* Milliseconds between samples */
+    public static final int POLL = 20;          /* Milliseconds between drains */
+
+    private static final String[] messages = new String[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();    /* Next to claim */
+    private static final AtomicLong dropped = new AtomicLong(); /* Ring was full */
+    private static final List<TftpProgress> tracked = new CopyOnWriteArrayList<>();
+
+    private static volatile int level = INFO;
+    private static long head;                   /* Next to read, by the drain */
+    private static long sampled;                /* Time in ms of the last sample */
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+
+        Thread thread = new Thread(TftpLog::run, "TftpLog");
+        thread.setDaemon(true);
+        thread.start();
+
+        /* Prints whatever is left when the program exits */
+        Runtime.getRuntime().addShutdownHook(new Thread(TftpLog::flush));
+    }
+
+
+    /**
+     * TftpLog private constructor.
+     * Not to be instantiated, only static use.
+     */
+    private TftpLog() {
+
+    }
+
+
+    /**
+     * Sets the level of the messages to print.
+     *
+     * @param   level   The int level, from {@link #OFF} to {@link #DEBUG}.
+     */
+    public static void setLevel(int level) {
+
+        TftpLog.level = level;
+    }
+
+
+    /**
+     * Checks if messages of the level are printed, so that a message that
+     * would be discarded need not be built.
+     *
+     * @param   level   The int level of the message.
+     * @return  True if messages of the level are printed, False otherwise.
+     */
+    public static boolean isEnabled(int level) {
+
+        return level <= TftpLog.level && level > OFF;
+    }
+
+
+    /**
+     * Logs a message of a failed transfer.
+     *
+     * @param   msg     The String message, printed on its own line.
+     */
+    public static void error(String msg) {
+
+        log(ERROR, msg);
+    }
+
+
+    /**
+     * Logs a message of a request or a transfer.
+     *
+     * @param   msg     The String message, printed on its own line.
+     */
+    public static void info(String msg) {
+
+        log(INFO, msg);
+    }
+
+
+    /**
+     * Logs a message that is only of use while debugging.
+     *
+     * @param   msg     The String message, printed on its own line.
+     */
+    public static void debug(String msg) {
+
+        log(DEBUG, msg);
+    }
+
+
+    /**
+     * Logs a message, if its level is printed.
+     *
+     * @param   level   The int level of the message.
+     * @param   msg     The String message, printed on its own line.
+     */
+    public static void log(int level, String msg) {
+
+        if (isEnabled(level) && !offer(msg + "\n")) {
+            dropped.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Starts sampling the progress of a transfer.
+     *
+     * @param   progress    The TftpProgress of the transfer.
+     */
+    public static void track(TftpProgress progress) {
+
+        tracked.add(progress);
+    }
+
+
+    /**
+     * Stops sampling the progress of a transfer.
+     *
+     * @param   progress    The TftpProgress of the transfer.
+     */
+    public static void untrack(TftpProgress progress) {
+
+        tracked.remove(progress);
+    }
+
+
+    /**
+     * Prints every message that has been queued so far.
+     *
+     * Called by the thread of the log, and by the programs before they print
+     * to the console themselves, so that the output stays in order.
+     */
+    public static synchronized void flush() {
+
+        StringBuilder out = new StringBuilder();
+        String msg;
+        while ((msg = poll()) != null) {
+            out.append(msg);
+        }
+
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.append("(" + lost + " log messages dropped)\n");
+        }
+
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+    }
+
+
+    /**
+     * Drains the ring every {@link #POLL} milliseconds, and samples the
+     * progress of the transfers every {@link #INTERVAL}.
+     */
+    private static void run() {
+
+        while (true) {
+            flush();
+
+            long now = System.nanoTime() / 1000000;
+            if (now - sampled >= INTERVAL) {
+                sampled = now;
+                sample();
+            }
+            LockSupport.parkNanos(POLL * 1000000L);
+        }
+    }
+
+
+    /**
+     * Prints the progress of each transfer that has moved since the last
+     * sample.
+     */
+    private static synchronized void sample() {
+
+        for (TftpProgress progress : tracked) {
+            String report = progress.sample();
+            if (report != null) {
+                System.out.print(report);
+            }
+        }
+        System.out.flush();
+    }
+
+
+    /**
+     * Puts a message at the tail of the ring, unless it is full.
+     *
+     * @param   msg     The String message.
+     * @return  True if the message was queued, False if the ring was full.
+     */
+    private static boolean offer(String msg) {
+
+        while (true) {
+            long claim = tail.get();
+            int index = (int) (claim & (CAPACITY - 1));
+            long sequence = sequences.get(index);
+
+            if (sequence == claim) {
+                /* The slot is free, and is claimed by moving the tail on */
+                if (tail.compareAndSet(claim, claim + 1)) {
+                    messages[index] = msg;
+                    sequences.set(index, claim + 1);    /* Publishes it */
+                    return true;
+                }
+            } else if (sequence < claim) {
+                return false;   /* The slot has not been read since last turn */
+            }
+            /* Another thread claimed the slot first, so tries the next one */
+        }
+    }
+
+
+    /**
+     * Takes the message at the head of the ring.
+     *
+     * @return  The String message, or null if there are none.
+     */
+    private static String poll() {
+
+        int index = (int) (head & (CAPACITY - 1));
+        if (sequences.get(index) != head + 1) {
+            return null;        /* Not published yet */
+        }
+
+        String msg = messages[index];
+        messages[index] = null;
+        sequences.set(index, head + CAPACITY);  /* Frees it for the next turn */
+        head++;
+        return msg;
+    }
+}
@@ -0,0 +1,388 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+
+/**
+ * TftpLoop class.
+ *
+ * This class implements Runnable.
+ * A single-threaded event loop that serves every request from one Selector.
+ *
+ * The listener and the socket of each {@link TftpSession} are non-blocking
+ * DatagramChannels registered with the same Selector. The loop reads whatever
+ * packets are ready, hands them to the session they belong to, then advances
+ * a {@link TftpWheel} that fires the ACK timeouts. No thread is ever parked on
+ * a single client, so the cost of a session is its state and its socket.
+ *
+ * The sessions send the same packets in the same order as the blocking
+ * {@link TftpWorker}, which remains the reference behaviour. An RRQ is served
+ * by a {@link TftpSession}, and a WRQ by a {@link TftpUpload}, both of them
+ * a {@link Session} of the loop.
+ *
+ * Several loops can share {@link Tftp#PORT} as shards. Each one then binds its
+ * own listener with SO_REUSEPORT, and the kernel spreads the incoming requests
+ * across them by the client's address and port.
+ *
+ * @see 	TftpServer
+ * @see 	TftpSession
+ * @see 	TftpUpload
+ * @see 	TftpWheel
+ */
+public class TftpLoop implements Runnable {
+
+	public static final int TICK = 10;		/* Timer wheel resolution in ms */
+	public static final int SLOTS = 512;	/* Timer wheel slots per turn */
+
+	private final Path path;
+	private final TftpConfig config;
+	private final TftpCache cache;
+	private final TftpPool pool;
+	private final boolean shared;
+	private final ByteBuffer buffer;
+	private final TftpWheel wheel;
+	private final Consumer<SelectionKey> ready = this::ready;
+
+	private volatile Selector selector;
+	private volatile boolean stopped;	/* True once asked to stop accepting */
+	private DatagramChannel listener;
+	private SelectionKey accept;	/* The key of the listener */
+	private long idle;				/* The time of the last request */
+	private int sessions;
+
+	/**
+	 * Session class.
+	 *
+	 * The state machine of one transfer, which the loop passes each packet
+	 * read from its channel, and whose timer fires on the loop's wheel.
+	 */
+	public abstract static class Session extends TftpWheel.Timer {
+
+		/**
+		 * Gets the channel of this session.
+		 *
+		 * @return  The DatagramChannel connected to the TftpClient.
+		 */
+		public abstract DatagramChannel getChannel();
+
+
+		/**
+		 * Starts the session with the request received by the listener.
+		 *
+		 * @param 	request 	The bytes of the request, trimmed to its length.
+		 * @param 	now 		The long current time in milliseconds.
+		 */
+		public abstract void start(byte[] request, long now);
+
+
+		/**
+		 * Handles a packet waiting on the channel from the TftpClient.
+		 *
+		 * @param 	buffer 	The ByteBuffer of the loop to read the packet into.
+		 * @param 	now 	The long current time in milliseconds.
+		 * @throws 	IOException
+		 */
+		public abstract void receive(ByteBuffer buffer, long now) throws IOException;
+
+
+		/**
+		 * Releases whatever the session holds, once it has been closed.
+		 */
+		public abstract void close();
+	}
+
+	/**
+	 * TftpLoop constructor.
+	 *
+	 * @param 	path 	The local directory of the TftpServer.
+	 * @param 	config 	The settings of the TftpServer.
+	 * @param 	cache 	The TftpCache of the files requested most.
+	 * @param 	pool 	The TftpPool of packet buffers.
+	 * @param 	shared 	True if the port is shared with other loops.
+	 */
+	public TftpLoop(Path path, TftpConfig config, TftpCache cache, TftpPool pool, boolean shared) {
+
+		this.path = path;
+		this.config = config;
+		this.cache = cache;
+		this.pool = pool;
+		this.shared = shared;
+		this.buffer = ByteBuffer.allocateDirect(Tftp.BUFFER);
+		this.wheel = new TftpWheel(TICK, SLOTS, now());
+	}
+
+
+	/**
+	 * Runs the event loop.
+	 *
+	 * Binds the listener to the port of the configuration, then selects until
+	 * no request has arrived within {@link Tftp#TIMEOUT}, or until stopped.
+	 * Like the blocking listener, it then stops accepting requests, but keeps
+	 * turning until every session in progress has finished.
+	 */
+	@Override
+	public void run() {
+
+		DatagramChannel listener = null;
+
+		try (Selector selector = Selector.open()) {
+			/* Not a resource, as it is closed early to free the port */
+			listener = DatagramChannel.open();
+			this.selector = selector;
+			this.listener = listener;
+
+			if (shared) {
+				listener.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			listener.bind(new InetSocketAddress(config.getPort()));
+			listener.configureBlocking(false);
+			accept = listener.register(selector, SelectionKey.OP_READ);
+
+			TftpLog.info("\n" + Thread.currentThread().getName() + " waiting on port " + config.getPort() + "...\n");
+
+			idle = now();
+			boolean accepting = true;
+
+			while (accepting || sessions > 0) {
+
+				long now = now();
+				long wait = wheel.untilNextTick(now);
+
+				if (accepting) {
+					long left = stopped ? 1 : Math.max(idle + Tftp.TIMEOUT - now, 1);
+					wait = (wait == 0) ? left : Math.min(wait, left);
+				}
+				try {
+					selector.select(ready, wait);	/* Without a set of selected keys */
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+
+				now = now();
+				wheel.advance(now);
+
+				if (accepting && (stopped || now - idle >= Tftp.TIMEOUT)) {
+					accepting = false;
+					accept.cancel();
+					listener.close();
+					TftpLog.info(stopped ? "Stopped waiting for requests." : "Timeout reached while waiting for a request.");
+				}
+			}
+		} catch (IOException e) {
+			TftpLog.error("Fatal Error: " + e.getMessage());
+		} finally {
+			TftpLog.info("\nClosing TftpServer Channel...");
+			if (listener != null) {
+				try {
+					listener.close();	/* Closing again does nothing */
+				} catch (IOException e) {
+					TftpLog.error("IOException: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Stops accepting requests, from any thread. The sessions in progress
+	 * are served until they finish.
+	 */
+	public void stop() {
+
+		stopped = true;
+		Selector current = selector;
+		if (current != null) {
+			current.wakeup();
+		}
+	}
+
+
+	/**
+	 * Gets the timer wheel of this loop, for the sessions to schedule on.
+	 *
+	 * @return  The TftpWheel that fires the ACK timeouts.
+	 */
+	public TftpWheel getWheel() {
+
+		return wheel;
+	}
+
+
+	/**
+	 * Gets the cache of files, shared with the other loops.
+	 *
+	 * @return  The TftpCache of the files requested most.
+	 */
+	public TftpCache getCache() {
+
+		return cache;
+	}
+
+
+	/**
+	 * Gets the pool of packet buffers, shared with the other loops.
+	 *
+	 * @return  The TftpPool of packet buffers.
+	 */
+	public TftpPool getPool() {
+
+		return pool;
+	}
+
+
+	/**
+	 * Gets the current time of the loop.
+	 *
+	 * @return  The long monotonic time in milliseconds.
+	 */
+	public static long now() {
+
+		return System.nanoTime() / 1000000;
+	}
+
+
+	/**
+	 * Closes the session, its timer, its file and its channel.
+	 *
+	 * @param 	session 	The Session that has finished.
+	 */
+	public void close(Session session) {
+
+		wheel.cancel(session);
+		session.close();
+		try {
+			session.getChannel().close();	/* Also cancels its key */
+		} catch (IOException e) {
+			TftpLog.error("IOException: " + e.getMessage());
+		}
+		sessions--;
+	}
+
+
+	/**
+	 * Handles a key that the Selector has found ready, as it is found, which
+	 * allocates nothing, unlike walking the set of selected keys.
+	 *
+	 * @param 	key 	The SelectionKey of the listener or of a session.
+	 * @throws 	UncheckedIOException if the listener failed.
+	 */
+	private void ready(SelectionKey key) {
+
+		if (key == accept) {
+			try {
+				accept(listener);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			idle = now();
+		} else if (key.isValid()) {
+			receive((Session) key.attachment());
+		}
+	}
+
+
+	/**
+	 * Accepts every request waiting on the listener.
+	 *
+	 * Each request opens a new channel on an ephemeral port, connected to the
+	 * client, the same as the socket of a {@link TftpWorker}. A WRQ starts a
+	 * {@link TftpUpload}, and any other request a {@link TftpSession}, which
+	 * answers anything but an RRQ with an ERROR. A request whose channel
+	 * can't be opened, as when the process runs out of file descriptors, is
+	 * dropped and logged, and the sessions in progress carry on.
+	 *
+	 * @param 	listener 	The DatagramChannel bound to the port.
+	 * @throws 	IOException
+	 */
+	private void accept(DatagramChannel listener) throws IOException {
+
+		SocketAddress client;
+		while ((client = receiveRequest(listener)) != null) {
+
+			byte[] request = new byte[buffer.remaining()];
+			buffer.get(request);
+
+			InetSocketAddress addr = (InetSocketAddress) client;
+			TftpLog.info("\nRequest received from " + addr.getAddress().getHostAddress() + ":" + addr.getPort() + "\n");
+
+			/* Out of file descriptors or ports only loses this request */
+			DatagramChannel channel = null;
+			Session session;
+			try {
+				channel = DatagramChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(client);
+
+				if (Tftp.getOpcode(request) == Tftp.WRQ) {
+					session = new TftpUpload(this, channel, path, config);
+				} else {
+					session = new TftpSession(this, channel, path, config);
+				}
+				channel.register(selector, SelectionKey.OP_READ, session);
+			} catch (IOException e) {
+				TftpLog.error("IOException: " + e.getMessage());
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException ignored) {
+						/* The request is lost either way */
+					}
+				}
+				continue;
+			}
+			sessions++;
+
+			try {
+				session.start(request, now());
+			} catch (RuntimeException | InternalError e) {
+				TftpLog.error("Fatal Error: " + e.getMessage());
+				close(session);
+			}
+		}
+	}
+
+
+	/**
+	 * Receives one request from the listener into the shared buffer.
+	 *
+	 * @param 	listener 	The DatagramChannel bound to the port.
+	 * @return  The SocketAddress of the client, or null if none is waiting.
+	 * @throws 	IOException
+	 */
+	private SocketAddress receiveRequest(DatagramChannel listener) throws IOException {
+
+		buffer.clear();
+		SocketAddress client = listener.receive(buffer);
+		buffer.flip();
+		return client;
+	}
+
+
+	/**
+	 * Passes the packet waiting on a session's channel to the session.
+	 *
+	 * A mapped file that is truncated while being sent raises an InternalError
+	 * (SIGBUS) on the next read past its end, which only fails that session,
+	 * rather than every session of the loop.
+	 *
+	 * @param 	session 	The Session whose channel is readable.
+	 */
+	private void receive(Session session) {
+
+		try {
+			buffer.clear();
+			session.receive(buffer, now());
+		} catch (IOException | RuntimeException | InternalError e) {
+			TftpLog.error("Fatal Error: " + e.getMessage());
+			close(session);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+
+/**
+ * TftpMapping class.
+ *
+ * A file mapped into memory, shared by every session that sends it.
+ *
+ * A large file, such as an operating system image, is too big to hold in the
+ * {@link TftpCache}, and reading it block by block with a FileChannel costs a
+ * system call for each block of each session. Instead the file is mapped once
+ * with {@link FileChannel#map}, and each block is copied straight out of the
+ * page cache. The pages live outside of the Java heap, so many clients
+ * downloading the same image add nothing to the garbage collector's work.
+ *
+ * A MappedByteBuffer is indexed by an int, so a file over 1 GB is mapped as
+ * several chunks of {@link #CHUNK} bytes each, and a block that crosses the
+ * end of a chunk is copied from both.
+ *
+ * The mapping is counted by each session that opens it, and the cache drops
+ * it once the last one closes. The memory is then unmapped by the garbage
+ * collector, as Java 17 has no way to unmap a MappedByteBuffer right away.
+ *
+ * @see     TftpCache
+ */
+public class TftpMapping {
+
+    public static final int CHUNK = 1 << 30;    /* Bytes in each mapped chunk */
+
+    private final Path path;            /* The path the file was mapped from */
+    private final long size;            /* The size of the version mapped */
+    private final FileTime modified;    /* The modified time of the version */
+    private final MappedByteBuffer[] chunks;
+    private int refs;                   /* Sessions with the mapping open */
+
+    /**
+     * TftpMapping constructor.
+     * Maps the whole file, read only.
+     *
+     * @param   filePath    The Path that describes where the file is located.
+     * @param   size        The long size of the file on disk.
+     * @param   modified    The FileTime the file was last modified on disk.
+     * @throws  IOException
+     */
+    public TftpMapping(Path filePath, long size, FileTime modified) throws IOException {
+
+        this.path = filePath;
+        this.size = size;
+        this.modified = modified;
+        this.chunks = new MappedByteBuffer[(int) ((size + CHUNK - 1) / CHUNK)];
+
+        /* The mapping stays valid after the channel is closed */
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i * CHUNK;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK, size - position));
+            }
+        }
+    }
+
+
+    /**
+     * Gets the path the file was mapped from.
+     *
+     * @return  The Path of the file.
+     */
+    public Path getPath() {
+
+        return path;
+    }
+
+
+    /**
+     * Checks if the mapping is of the version of the file on disk.
+     *
+     * @param   size        The long size of the file on disk.
+     * @param   modified    The FileTime the file was last modified on disk.
+     * @return  True if the file has not changed since it was mapped.
+     */
+    public boolean matches(long size, FileTime modified) {
+
+        return this.size == size && this.modified.equals(modified);
+    }
+
+
+    /**
+     * Counts one more session, and gets its source of the blocks. Only called
+     * by the cache, while it holds its lock.
+     *
+     * @param   cache   The TftpCache to release the mapping to once closed.
+     * @return  The TftpSource to read the blocks from.
+     */
+    TftpSource acquire(TftpCache cache) {
+
+        refs++;
+        return new Source(cache);
+    }
+
+
+    /**
+     * Counts one less session. Only called by the cache, while it holds its
+     * lock.
+     *
+     * @return  True if no session has the mapping open any more.
+     */
+    boolean release() {
+
+        return --refs == 0;
+    }
+
+
+    /**
+     * Source class.
+     *
+     * The blocks of a mapping, as read by one session.
+     */
+    private class Source implements TftpSource {
+
+        private final TftpCache cache;
+        private boolean closed;
+
+        /**
+         * Source constructor.
+         *
+         * @param   cache   The TftpCache to release the mapping to once closed.
+         */
+        private Source(TftpCache cache) {
+
+            this.cache = cache;
+        }
+
+
+        /**
+         * Gets the size of the file when it was mapped.
+         *
+         * @return  The long size of the file in bytes.
+         */
+        @Override
+        public long size() {
+
+            return size;
+        }
+
+
+        /**
+         * Copies the bytes of one block into the buffer, at its position.
+         *
+         * @param   block   The long index of the block, starting at 0.
+         * @param   blksize The int amount of file bytes in each block.
+         * @param   dst     The ByteBuffer to copy into, with room for the block.
+         * @return  The int amount of bytes copied, less than a full block if last.
+         */
+        @Override
+        public int read(long block, int blksize, ByteBuffer dst) {
+
+            long position = block * blksize;
+            int length = (int) Math.min(blksize, size - position);
+
+            int done = 0;
+            while (done < length) {
+                MappedByteBuffer chunk = chunks[(int) ((position + done) / CHUNK)];
+                int offset = (int) ((position + done) % CHUNK);
+                int n = Math.min(length - done, chunk.capacity() - offset);
+
+                dst.put(dst.position(), chunk, offset, n);  /* Leaves both positions */
+                dst.position(dst.position() + n);
+                done += n;
+            }
+            return length;
+        }
+
+
+        /**
+         * Releases the mapping to the cache, once.
+         */
+        @Override
+        public void close() {
+
+            if (!closed) {
+                closed = true;
+                cache.release(TftpMapping.this);
+            }
+        }
+    }
+}
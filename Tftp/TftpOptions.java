@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * TftpOptions class.
+ *
+ * The options of a single transfer, as negotiated by the TFTP Option
+ * Extension of RFC 2347.
+ *
+ * The client appends the options it wants to its RRQ or WRQ, as pairs of
+ * names and values. The server answers with an OACK holding only the options
+ * it has accepted, with the values it will use, and the client confirms with
+ * an ACK of block 0. A transfer without options keeps the RFC 1350 defaults.
+ *
+ * Supported options:
+ *  - blksize, RFC 2348, the amount of file bytes in each DATA block.
+ *  - windowsize, RFC 7440, the amount of blocks sent before waiting for an ACK.
+ *  - tsize, RFC 2349, the size of the file, reported by the side sending it.
+ *  - timeout, RFC 2349, the seconds to wait before retransmitting.
+ *
+ * @see     Tftp
+ * @see     TftpConfig
+ */
+public class TftpOptions {
+
+    public static final String BLKSIZE = "blksize";
+    public static final String WINDOWSIZE = "windowsize";
+    public static final String TSIZE = "tsize";
+    public static final String TIMEOUT = "timeout";
+
+    public static final int MIN_BLKSIZE = 8;        /* Smallest block, RFC 2348 */
+    public static final int MAX_BLKSIZE = 65464;    /* Largest block, RFC 2348 */
+    public static final int MAX_WINDOWSIZE = 65535; /* Largest window, RFC 7440 */
+    public static final int MAX_TIMEOUT = 255;      /* Longest timeout, RFC 2349 */
+
+    private final Map<String, String> accepted = new LinkedHashMap<>();
+
+    private int blksize = Tftp.BLOCK;
+    private int windowsize = 1;
+    private long tsize = -1;                        /* -1 if not known */
+    private int timeout = Tftp.WAIT;                /* In milliseconds */
+
+    /**
+     * TftpOptions constructor.
+     * The options start at the RFC 1350 defaults.
+     */
+    public TftpOptions() {}
+
+
+    /**
+     * Negotiates the options requested by a TftpClient, on the server side.
+     *
+     * Options that are unknown or have a value that can't be parsed are left
+     * out, as RFC 2347 allows. A block size larger than the maximum set in the
+     * configuration is lowered to that maximum, and so is a window size.
+     *
+     * The tsize is answered with the size of the file, and a timeout from 1
+     * to {@link #MAX_TIMEOUT} seconds is accepted as it is.
+     *
+     * @param   requested   The options from the RRQ, with names in lower case.
+     * @param   config      The settings of the TftpServer.
+     * @param   fileSize    The long size of the requested file.
+     * @return  The TftpOptions to use, holding the options for the OACK.
+     */
+    public static TftpOptions negotiate(Map<String, String> requested, TftpConfig config, long fileSize) {
+
+        TftpOptions options = new TftpOptions();
+
+        String value = requested.get(BLKSIZE);
+        if (value != null) {
+            int max = (config.getBlksize() > 0) ? config.getBlksize() : MAX_BLKSIZE;
+            int size = parse(value);
+            if (size >= MIN_BLKSIZE) {
+                options.blksize = Math.min(size, max);
+                options.accepted.put(BLKSIZE, Integer.toString(options.blksize));
+            }
+        }
+
+        value = requested.get(WINDOWSIZE);
+        if (value != null) {
+            int max = (config.getWindowsize() > 0) ? config.getWindowsize() : MAX_WINDOWSIZE;
+            int size = parse(value);
+            if (size >= 1) {
+                options.windowsize = Math.min(size, max);
+                options.accepted.put(WINDOWSIZE, Integer.toString(options.windowsize));
+            }
+        }
+
+        value = requested.get(TSIZE);
+        if (value != null) {
+            options.tsize = fileSize;
+            options.accepted.put(TSIZE, Long.toString(fileSize));
+        }
+
+        value = requested.get(TIMEOUT);
+        if (value != null) {
+            int seconds = parse(value);
+            if (seconds >= 1 && seconds <= MAX_TIMEOUT) {
+                options.timeout = seconds * 1000;
+                options.accepted.put(TIMEOUT, Integer.toString(seconds));
+            }
+        }
+        return options;
+    }
+
+
+    /**
+     * Negotiates the options of a WRQ, on the server side.
+     *
+     * The same as {@link #negotiate}, except that the tsize is the size of
+     * the file the TftpClient is about to send, which is echoed back as it
+     * is. A tsize that can't be parsed is left out.
+     *
+     * @param   requested   The options from the WRQ, with names in lower case.
+     * @param   config      The settings of the TftpServer.
+     * @return  The TftpOptions to use, holding the options for the OACK.
+     */
+    public static TftpOptions negotiateUpload(Map<String, String> requested, TftpConfig config) {
+
+        String value = requested.get(TSIZE);
+        long size = (value != null) ? parseLong(value) : -1;
+        if (value != null && size < 0) {
+            requested = new LinkedHashMap<>(requested);
+            requested.remove(TSIZE);
+        }
+        return negotiate(requested, config, size);
+    }
+
+
+    /**
+     * Gets the options that a TftpClient should request in its RRQ.
+     *
+     * @param   config  The settings of the TftpClient.
+     * @return  The Map of option names to values, empty if none are wanted.
+     */
+    public static Map<String, String> request(TftpConfig config) {
+
+        return request(config, 0);
+    }
+
+
+    /**
+     * Gets the options that a TftpClient should request in its RRQ, or in
+     * its WRQ with the size of the file to upload.
+     *
+     * The tsize is only added to other options, as it would otherwise cost
+     * an OACK and an ACK of block 0 before the first block, on a transfer
+     * that keeps the defaults.
+     *
+     * @param   config  The settings of the TftpClient.
+     * @param   tsize   The long size of the file to upload, or 0 to ask for
+     *                  the size of the file to download.
+     * @return  The Map of option names to values, empty if none are wanted.
+     */
+    public static Map<String, String> request(TftpConfig config, long tsize) {
+
+        Map<String, String> requested = new LinkedHashMap<>();
+
+        if (config.getBlksize() > 0) {
+            requested.put(BLKSIZE, Integer.toString(config.getBlksize()));
+        }
+        if (config.getWindowsize() > 0) {
+            requested.put(WINDOWSIZE, Integer.toString(config.getWindowsize()));
+        }
+        if (config.getTimeout() > 0) {
+            requested.put(TIMEOUT, Integer.toString(config.getTimeout()));
+        }
+        if (!requested.isEmpty()) {
+            requested.put(TSIZE, Long.toString(tsize)); /* Rides on the OACK */
+        }
+        return requested;
+    }
+
+
+    /**
+     * Accepts the OACK from a TftpServer, on the client side.
+     *
+     * @param   oack        The options from the OACK, with names in lower case.
+     * @param   requested   The options the TftpClient asked for.
+     * @return  The TftpOptions to use for the download or upload.
+     * @throws  IOException if the server acknowledged an option that was not
+     *          requested, or a value the client can't use.
+     */
+    public static TftpOptions accept(Map<String, String> oack, Map<String, String> requested) throws IOException {
+
+        TftpOptions options = new TftpOptions();
+
+        for (Map.Entry<String, String> option : oack.entrySet()) {
+            String name = option.getKey();
+            if (!requested.containsKey(name)) {
+                throw new IOException("Option " + name + " was not requested.");
+            }
+
+            if (name.equals(BLKSIZE)) {
+                int size = parse(option.getValue());
+                if (size < MIN_BLKSIZE || size > parse(requested.get(BLKSIZE))) {
+                    throw new IOException("Block size " + option.getValue() + " is not valid.");
+                }
+                options.blksize = size;
+            } else if (name.equals(WINDOWSIZE)) {
+                int size = parse(option.getValue());
+                if (size < 1 || size > parse(requested.get(WINDOWSIZE))) {
+                    throw new IOException("Window size " + option.getValue() + " is not valid.");
+                }
+                options.windowsize = size;
+            } else if (name.equals(TSIZE)) {
+                long size = parseLong(option.getValue());
+                if (size < 0) {
+                    throw new IOException("Transfer size " + option.getValue() + " is not valid.");
+                }
+                options.tsize = size;
+            } else if (name.equals(TIMEOUT)) {
+                int seconds = parse(option.getValue());
+                if (seconds != parse(requested.get(TIMEOUT))) {
+                    throw new IOException("Timeout " + option.getValue() + " is not valid.");
+                }
+                options.timeout = seconds * 1000;
+            }
+            options.accepted.put(name, option.getValue());
+        }
+        return options;
+    }
+
+
+    /**
+     * Gets the amount of file bytes in each DATA block.
+     *
+     * @return  The int block size, {@link Tftp#BLOCK} unless negotiated.
+     */
+    public int getBlksize() {
+
+        return blksize;
+    }
+
+
+    /**
+     * Gets the amount of blocks sent back to back before waiting for an ACK.
+     *
+     * @return  The int window size, 1 unless negotiated.
+     */
+    public int getWindowsize() {
+
+        return windowsize;
+    }
+
+
+    /**
+     * Gets the size of the file, if the tsize option was negotiated.
+     *
+     * @return  The long size of the file in bytes, or -1 if not known.
+     */
+    public long getTsize() {
+
+        return tsize;
+    }
+
+
+    /**
+     * Gets the time to wait for a packet before retransmitting.
+     *
+     * @return  The int timeout in milliseconds, {@link Tftp#WAIT} unless
+     *          negotiated.
+     */
+    public int getTimeout() {
+
+        return timeout;
+    }
+
+
+    /**
+     * Gets the options that were accepted, to be sent in an OACK.
+     *
+     * @return  The Map of option names to values, empty if there are none.
+     */
+    public Map<String, String> getAccepted() {
+
+        return accepted;
+    }
+
+
+    /**
+     * Parses the value of an option as a positive int.
+     *
+     * @param   value   The String value of the option.
+     * @return  The int value, or -1 if it is not a positive int.
+     */
+    private static int parse(String value) {
+
+        try {
+            return Math.max(Integer.parseInt(value.trim()), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Parses the value of an option as a long of 0 or more.
+     *
+     * @param   value   The String value of the option.
+     * @return  The long value, or -1 if it is not a long of 0 or more.
+     */
+    private static long parseLong(String value) {
+
+        try {
+            return Math.max(Long.parseLong(value.trim()), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * TftpPool class.
+ *
+ * The direct buffers that the sessions encode their DATA packets into, kept
+ * from one transfer to the next.
+ *
+ * A direct buffer is slow to allocate, as its memory is zeroed and reserved
+ * outside of the Java heap, and is only given back once the garbage collector
+ * finds it unused. A server answering many short transfers would otherwise
+ * allocate one for each. Instead a session takes a buffer from the pool when
+ * it starts, and puts it back when it closes, so that a busy server reuses
+ * the same few buffers.
+ *
+ * The buffers are kept in size classes, each a power of two from
+ * {@link #MIN_CLASS} bytes, and at most {@link #LIMIT} of each. A buffer is
+ * taken from the smallest class that fits the negotiated block size and its
+ * header, and limited to that. A block size is at most 65464 bytes, so there
+ * are only eight classes, and the pool holds about 8 MB at most, whichever
+ * block sizes the clients ask for. The pool is shared by every session, on
+ * any thread, and never waits.
+ *
+ * @see     TftpSession
+ * @see     TftpWorker
+ */
+public class TftpPool {
+
+    public static final int LIMIT = 64;         /* Buffers kept of each class */
+    public static final int MIN_CLASS = 512;    /* Bytes of the smallest class */
+
+    private final ConcurrentHashMap<Integer, ArrayBlockingQueue<ByteBuffer>> free;
+
+    /**
+     * TftpPool constructor.
+     */
+    public TftpPool() {
+
+        this.free = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Takes a buffer of the size class of the capacity from the pool, or
+     * allocates one if none is free.
+     *
+     * @param   capacity    The int amount of bytes the buffer must hold.
+     * @return  The direct ByteBuffer, cleared, with its limit at the capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+
+        int size = sizeClass(capacity);
+        ArrayBlockingQueue<ByteBuffer> buffers = free.get(size);
+        ByteBuffer buf = (buffers != null) ? buffers.poll() : null;
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(size);
+        }
+        return buf.clear().limit(capacity);
+    }
+
+
+    /**
+     * Puts a buffer back in the pool, unless enough of its capacity are kept
+     * already. The buffer must no longer be used by the caller.
+     *
+     * @param   buf     The direct ByteBuffer taken from the pool.
+     */
+    public void release(ByteBuffer buf) {
+
+        free.computeIfAbsent(buf.capacity(), capacity -> new ArrayBlockingQueue<>(LIMIT)).offer(buf);
+    }
+
+
+    /**
+     * Rounds a capacity up to its size class.
+     *
+     * @param   capacity    The int amount of bytes a buffer must hold.
+     * @return  The int size of the class, a power of two.
+     */
+    private static int sizeClass(int capacity) {
+
+        return Math.max(MIN_CLASS, Integer.highestOneBit(capacity - 1) << 1);
+    }
+}
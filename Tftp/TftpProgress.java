@@ -0,0 +1,123 @@
+/**
+ * TftpProgress class.
+ *
+ * The progress of one transfer, sampled by the thread of {@link TftpLog}.
+ *
+ * The transfer loop only stores the count of its last block in a volatile
+ * field, which costs nothing compared to sending a packet. The log samples
+ * it every {@link TftpLog#INTERVAL} milliseconds and prints the count it
+ * finds, so the console is written a few times a second however fast the
+ * transfer is, and a slow console never holds up the transfer.
+ *
+ * The progress of the only transfer of a TftpClient is printed over itself on
+ * one line. The transfers of a TftpServer are labelled, one line each.
+ *
+ * @see     TftpLog
+ * @see     TftpClient
+ * @see     TftpWorker
+ */
+public class TftpProgress {
+
+    private final String label;         /* Names the transfer, or null */
+    private final String verb;          /* What is done with each block */
+    private final int level;            /* The log level of the reports */
+
+    private volatile long done;         /* The amount of blocks done */
+    private volatile long total = -1;   /* The amount of blocks, -1 unknown */
+    private long reported = -1;         /* The count of the last sample */
+    private boolean stopped;
+
+    /**
+     * TftpProgress constructor.
+     * Starts being sampled, if the level is printed.
+     *
+     * @param   label   The String that names the transfer, or null.
+     * @param   verb    The String that describes each block, like "Downloaded".
+     * @param   level   The int log level of the reports.
+     */
+    public TftpProgress(String label, String verb, int level) {
+
+        this.label = label;
+        this.verb = verb;
+        this.level = level;
+
+        if (TftpLog.isEnabled(level)) {
+            TftpLog.track(this);
+        }
+    }
+
+
+    /**
+     * Sets the amount of blocks done, to be shown by the next sample.
+     *
+     * @param   done    The long amount of blocks done.
+     */
+    public void update(long done) {
+
+        this.done = done;
+    }
+
+
+    /**
+     * Sets the amount of blocks in the transfer, once it is known.
+     *
+     * @param   total   The long amount of blocks.
+     */
+    public void setTotal(long total) {
+
+        this.total = total;
+    }
+
+
+    /**
+     * Stops being sampled, and logs the last count, once.
+     */
+    public void stop() {
+
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+
+        TftpLog.untrack(this);
+        if (TftpLog.isEnabled(level)) {
+            TftpLog.log(level, "\t" + report(done).trim());
+        }
+    }
+
+
+    /**
+     * Samples the count, for the thread of the log.
+     *
+     * @return  The String report, or null if the count has not moved.
+     */
+    String sample() {
+
+        long now = done;
+        if (now == reported) {
+            return null;
+        }
+        reported = now;
+        return report(now);
+    }
+
+
+    /**
+     * Describes the amount of blocks done, out of the total when known.
+     *
+     * @param   now     The long amount of blocks done.
+     * @return  The String report, ending in a carriage return or a newline.
+     */
+    private String report(long now) {
+
+        long all = total;
+        String count = (all > 0)
+            ? now + "/" + all + " packets (" + (now * 100 / all) + "%)"
+            : now + " packets...";
+
+        if (label == null) {
+            return "\t\r" + verb + " " + count + "\r";
+        }
+        return "\t" + label + ": " + verb + " " + count + "\n";
+    }
+}
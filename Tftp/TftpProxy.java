@@ -0,0 +1,507 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * TftpProxy class.
+ *
+ * A UDP proxy between TftpClients and a TftpServer on one machine, which
+ * loses, duplicates, reorders and delays the packets it forwards, to measure
+ * how the transfers recover under the conditions of a real network.
+ *
+ * A TftpClient sends its request to the port of the proxy instead of the
+ * TftpServer. Each client is given a session of two sockets: one that faces
+ * the TftpServer, which sends the request on and receives from the worker
+ * that answers, and one that faces the client, which it sends to and ACKs.
+ * So the transfer identifiers of RFC 1350 keep working through the proxy.
+ * The first worker to answer is the TID of the session, and packets from any
+ * other port, such as a second worker started by a repeated request, are
+ * dropped, as the client would have to reject them.
+ *
+ * Every packet forwarded is first put through the impairments, in order:
+ *
+ *      -loss P     Drops the packet with probability P.
+ *      -dup P      Sends the packet twice with probability P.
+ *      -delay N    Holds every packet N milliseconds.
+ *      -jitter N   Holds every packet up to N milliseconds more.
+ *      -reorder P  Holds the packet {@link #HOLD} milliseconds more with
+ *                  probability P, so the packets after it overtake it.
+ *
+ * The decisions are drawn from a Random for each direction of each session,
+ * seeded by {@code -seed}, the bytes of the request and how many sessions
+ * made the same request before it. Clients that arrive in another order from
+ * one run to the next still draw the same decisions for the same transfers,
+ * packet by packet, though a packet a timeout resends can fall in a new
+ * place. The packets are sent by a single thread, at the time each is due.
+ *
+ * A session is dropped once it has been idle for {@link Tftp#TIMEOUT}.
+ *
+ *      java TftpProxy [-port 6969] [-server 127.0.0.1:69] [-loss 0.01]
+ *                     [-dup 0] [-reorder 0] [-delay 0] [-jitter 0] [-seed 1]
+ *
+ * @see     TftpLoad
+ */
+public class TftpProxy implements Closeable {
+
+    public static final int PORT = 6969;        /* Default port of the proxy */
+    public static final int HOLD = 5;           /* Milliseconds a reordered packet is held */
+
+    private final DatagramSocket front;         /* Receives the requests */
+    private final InetSocketAddress server;     /* The listener of the TftpServer */
+    private final double loss;
+    private final double dup;
+    private final double reorder;
+    private final int delay;
+    private final int jitter;
+    private final long seed;
+
+    private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicated = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong strays = new AtomicLong();
+    private final Map<Integer, Integer> requests = new HashMap<>();    /* Sessions of each request */
+
+    private volatile boolean closed;
+    private long sequence;                      /* Orders packets due at once */
+
+    /**
+     * TftpProxy constructor.
+     * Binds the port of the proxy.
+     *
+     * @param   port    The int port to receive requests on, or 0 for any.
+     * @param   server  The InetSocketAddress the TftpServer listens on.
+     * @param   loss    The double probability that a packet is dropped.
+     * @param   dup     The double probability that a packet is sent twice.
+     * @param   reorder The double probability that a packet is held back.
+     * @param   delay   The int milliseconds every packet is held.
+     * @param   jitter  The int milliseconds more a packet is held, at most.
+     * @param   seed    The long seed of the decisions.
+     * @throws  IOException
+     */
+    public TftpProxy(int port, InetSocketAddress server, double loss, double dup, double reorder, int delay, int jitter, long seed) throws IOException {
+
+        this.front = new DatagramSocket(port);
+        this.server = server;
+        this.loss = loss;
+        this.dup = dup;
+        this.reorder = reorder;
+        this.delay = delay;
+        this.jitter = jitter;
+        this.seed = seed;
+    }
+
+
+    /**
+     * Entry point main.
+     * Runs the proxy until the program is stopped, then prints what it did.
+     *
+     * @param   args    The flags of the proxy.
+     */
+    public static void main(String[] args) {
+
+        int port = PORT;
+        String server = "127.0.0.1:" + Tftp.PORT;
+        double loss = 0, dup = 0, reorder = 0;
+        int delay = 0, jitter = 0;
+        long seed = 1;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-port":       port = Integer.parseInt(value); break;
+                    case "-server":     server = value; break;
+                    case "-loss":       loss = Double.parseDouble(value); break;
+                    case "-dup":        dup = Double.parseDouble(value); break;
+                    case "-reorder":    reorder = Double.parseDouble(value); break;
+                    case "-delay":      delay = Integer.parseInt(value); break;
+                    case "-jitter":     jitter = Integer.parseInt(value); break;
+                    case "-seed":       seed = Long.parseLong(value); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown flag " + args[i]);
+                }
+            }
+
+            int colon = server.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected host:port for -server");
+            }
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getByName(server.substring(0, colon)),
+                Integer.parseInt(server.substring(colon + 1)));
+
+            TftpProxy proxy = new TftpProxy(port, target, loss, dup, reorder, delay, jitter, seed);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                proxy.close();
+                System.out.println("\n" + proxy.getStats());
+            }));
+
+            System.out.println("Forwarding port " + proxy.getPort() + " to " + target + "...");
+            proxy.run();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: $ java TftpProxy [-port N] [-server host:port] [-loss P] [-dup P] [-reorder P] [-delay ms] [-jitter ms] [-seed N]");
+        } catch (IOException e) {
+            System.out.println("IOException: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Gets the port the proxy receives requests on.
+     *
+     * @return  The int local port.
+     */
+    public int getPort() {
+
+        return front.getLocalPort();
+    }
+
+
+    /**
+     * Starts the proxy on background threads, to run alongside a benchmark.
+     */
+    public void start() {
+
+        Thread thread = new Thread(this::run, "TftpProxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+     * Runs the proxy on this thread until closed: starts the thread that
+     * sends the packets, then receives the requests.
+     */
+    public void run() {
+
+        Thread sender = new Thread(this::send, "TftpProxy-send");
+        sender.setDaemon(true);
+        sender.start();
+
+        byte[] buf = new byte[Tftp.HEADER + TftpOptions.MAX_BLKSIZE];
+        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+
+        while (!closed) {
+            try {
+                pkt.setLength(buf.length);
+                front.receive(pkt);
+
+                Session session = sessions.get(pkt.getSocketAddress());
+                if (session == null) {
+                    session = open(pkt);
+                }
+                session.toServer(pkt);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Closes the proxy and every session.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+        front.close();
+        for (Session session : sessions.values()) {
+            session.close();
+        }
+        synchronized (queue) {
+            queue.notifyAll();
+        }
+    }
+
+
+    /**
+     * Describes the packets the proxy has forwarded and impaired.
+     *
+     * @return  The String counts.
+     */
+    public String getStats() {
+
+        return "TftpProxy: " + forwarded.get() + " forwarded, " + dropped.get() + " dropped, "
+            + duplicated.get() + " duplicated, " + reordered.get() + " reordered, "
+            + strays.get() + " from another TID";
+    }
+
+
+    /**
+     * Opens a session for a client that has sent its first request. It is
+     * seeded by the request rather than the order the clients arrived in,
+     * which concurrent clients do not keep from one run to the next.
+     *
+     * @param   pkt     The DatagramPacket of the request.
+     * @return  The new Session.
+     * @throws  IOException
+     */
+    private synchronized Session open(DatagramPacket pkt) throws IOException {
+
+        int request = 1;
+        for (int i = pkt.getOffset(); i < pkt.getOffset() + pkt.getLength(); i++) {
+            request = 31 * request + pkt.getData()[i];
+        }
+        int repeat = requests.merge(request, 1, Integer::sum) - 1;
+
+        /* Doubled, this fills the 48 bits a Random keeps of its seed */
+        Session session = new Session(pkt.getSocketAddress(), ((long) request << 15) + repeat);
+        sessions.put(session.client, session);
+        session.start();
+        return session;
+    }
+
+
+    /**
+     * Puts a packet through the impairments, and queues each copy that is
+     * left to be sent once due.
+     *
+     * @param   pkt     The DatagramPacket received, copied before it returns.
+     * @param   socket  The DatagramSocket to send it from.
+     * @param   target  The SocketAddress to send it to.
+     * @param   random  The Random of this direction of the session.
+     */
+    private void forward(DatagramPacket pkt, DatagramSocket socket, SocketAddress target, Random random) {
+
+        if (random.nextDouble() < loss) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int copies = 1;
+        if (random.nextDouble() < dup) {
+            duplicated.incrementAndGet();
+            copies = 2;
+        }
+
+        byte[] data = Arrays.copyOfRange(pkt.getData(), pkt.getOffset(), pkt.getOffset() + pkt.getLength());
+        long now = System.nanoTime();
+
+        for (int i = 0; i < copies; i++) {
+            long hold = delay + ((jitter > 0) ? random.nextInt(jitter + 1) : 0);
+            if (random.nextDouble() < reorder) {
+                reordered.incrementAndGet();
+                hold += HOLD;
+            }
+            synchronized (queue) {
+                queue.add(new Pending(now + hold * 1000000L, sequence++, socket, data, target));
+                queue.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Sends each packet queued once it is due, until the proxy is closed.
+     */
+    private void send() {
+
+        while (!closed) {
+            Pending next;
+            synchronized (queue) {
+                next = queue.peek();
+                long wait = (next == null) ? 0 : next.due - System.nanoTime();
+                if (next == null || wait > 0) {
+                    try {
+                        if (next == null) {
+                            queue.wait();
+                        } else {
+                            queue.wait(wait / 1000000, (int) (wait % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                queue.poll();
+            }
+
+            try {
+                next.socket.send(new DatagramPacket(next.data, next.data.length, next.target));
+                forwarded.incrementAndGet();
+            } catch (IOException e) {
+                /* The session has closed, so the packet is lost */
+            }
+        }
+    }
+
+
+    /**
+     * Pending class.
+     *
+     * A packet waiting to be sent, ordered by the time it is due.
+     */
+    private static class Pending implements Comparable<Pending> {
+
+        private final long due;                 /* System.nanoTime to send at */
+        private final long sequence;            /* Order queued, for ties */
+        private final DatagramSocket socket;
+        private final byte[] data;
+        private final SocketAddress target;
+
+        /**
+         * Pending constructor.
+         *
+         * @param   due         The long System.nanoTime to send at.
+         * @param   sequence    The long order it was queued in.
+         * @param   socket      The DatagramSocket to send it from.
+         * @param   data        The byte array of the packet.
+         * @param   target      The SocketAddress to send it to.
+         */
+        private Pending(long due, long sequence, DatagramSocket socket, byte[] data, SocketAddress target) {
+
+            this.due = due;
+            this.sequence = sequence;
+            this.socket = socket;
+            this.data = data;
+            this.target = target;
+        }
+
+
+        /**
+         * Compares the times due, then the order queued.
+         *
+         * @param   other   The Pending packet to compare to.
+         * @return  The int order of the two.
+         */
+        @Override
+        public int compareTo(Pending other) {
+
+            int order = Long.compare(due, other.due);
+            return (order != 0) ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+
+
+    /**
+     * Session class.
+     *
+     * The two sockets that carry the transfer of one TftpClient, one facing
+     * the TftpServer and one facing the client.
+     */
+    private class Session {
+
+        private final SocketAddress client;
+        private final DatagramSocket upstream;      /* Faces the TftpServer */
+        private final DatagramSocket downstream;    /* Faces the TftpClient */
+        private final Random up;                    /* Decides the requests and ACKs */
+        private final Random down;                  /* Decides the blocks */
+        private volatile SocketAddress worker;      /* The TID of the TftpServer */
+
+        /**
+         * Session constructor.
+         * Opens both sockets on ephemeral ports.
+         *
+         * @param   client  The SocketAddress of the TftpClient.
+         * @param   index   The long key of the session, to seed it.
+         * @throws  IOException
+         */
+        private Session(SocketAddress client, long index) throws IOException {
+
+            this.client = client;
+            this.upstream = new DatagramSocket();
+            this.downstream = new DatagramSocket();
+            this.upstream.setSoTimeout(Tftp.TIMEOUT);
+            this.downstream.setSoTimeout(Tftp.TIMEOUT);
+            this.up = new Random(seed * 31 + index * 2);
+            this.down = new Random(seed * 31 + index * 2 + 1);
+        }
+
+
+        /**
+         * Starts the threads that receive from either side.
+         */
+        private void start() {
+
+            Thread fromServer = new Thread(() -> relay(upstream, true), "TftpProxy-up");
+            Thread fromClient = new Thread(() -> relay(downstream, false), "TftpProxy-down");
+            fromServer.setDaemon(true);
+            fromClient.setDaemon(true);
+            fromServer.start();
+            fromClient.start();
+        }
+
+
+        /**
+         * Forwards a packet from the TftpClient, to the worker once known, or
+         * else to the listener of the TftpServer.
+         *
+         * @param   pkt     The DatagramPacket from the TftpClient.
+         */
+        private void toServer(DatagramPacket pkt) {
+
+            SocketAddress target = (worker != null) ? worker : server;
+            forward(pkt, upstream, target, up);
+        }
+
+
+        /**
+         * Receives from one side and forwards to the other, until the session
+         * is idle or closed.
+         *
+         * @param   socket      The DatagramSocket to receive from.
+         * @param   fromServer  True if the socket faces the TftpServer.
+         */
+        private void relay(DatagramSocket socket, boolean fromServer) {
+
+            byte[] buf = new byte[Tftp.HEADER + TftpOptions.MAX_BLKSIZE];
+            DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+
+            try {
+                while (!closed) {
+                    pkt.setLength(buf.length);
+                    socket.receive(pkt);
+
+                    if (fromServer) {
+                        if (worker == null) {
+                            worker = pkt.getSocketAddress();    /* The TID of the session */
+                        } else if (!worker.equals(pkt.getSocketAddress())) {
+                            strays.incrementAndGet();
+                            continue;
+                        }
+                        forward(pkt, downstream, client, down);
+                    } else {
+                        toServer(pkt);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                /* Idle, so the transfer is over */
+            } catch (IOException e) {
+                /* Closed by the other side */
+            }
+            close();
+        }
+
+
+        /**
+         * Closes both sockets, and forgets the session.
+         */
+        private void close() {
+
+            sessions.remove(client, this);
+            upstream.close();
+            downstream.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * TftpRtt class.
+ *
+ * Estimates the round trip time of a transfer, to decide how long to wait for
+ * a packet before retransmitting.
+ *
+ * The estimate follows RFC 6298: a smoothed round trip time (SRTT) and its
+ * variation (RTTVAR) are updated from each sample, and the timeout is
+ * SRTT + 4 * RTTVAR. Until the first sample the timeout is {@link Tftp#WAIT}.
+ * Each retransmission doubles the timeout, and by Karn's rule the reply to a
+ * packet that was retransmitted is never sampled, as it can't be told which
+ * of the copies it answers.
+ *
+ * If the timeout option was negotiated, the timeout is fixed to it instead,
+ * as RFC 2349 asks, although it is still doubled by retransmissions.
+ *
+ * The samples are taken in nanoseconds, but sockets and the timer wheel count
+ * in milliseconds, so the timeout is bounded below by {@link #MIN_TIMEOUT}.
+ *
+ * @see     TftpWorker
+ * @see     TftpSession
+ * @see     TftpClient
+ */
+public class TftpRtt {
+
+    public static final int MIN_TIMEOUT = 10;       /* Lowest timeout in ms */
+    public static final int MAX_TIMEOUT = 60000;    /* Highest timeout in ms */
+
+    private final boolean adaptive;     /* False if the timeout was negotiated */
+    private long srtt = -1;             /* Smoothed round trip in ns, -1 unset */
+    private long rttvar;                /* Round trip variation in ns */
+    private int timeout;                /* The timeout in ms, before backoff */
+    private int backoff;                /* Retransmissions since the last sample */
+
+    private long sent;                  /* The time in ns the packet was sent */
+    private boolean waiting;            /* True until the reply is received */
+    private boolean retried;            /* True if the packet was resent */
+
+    /**
+     * TftpRtt constructor, for a timeout that adapts from {@link Tftp#WAIT}.
+     */
+    public TftpRtt() {
+
+        this.adaptive = true;
+        this.timeout = Tftp.WAIT;
+    }
+
+
+    /**
+     * TftpRtt constructor, for the options of a transfer.
+     *
+     * @param   options The TftpOptions negotiated for the transfer.
+     */
+    public TftpRtt(TftpOptions options) {
+
+        this.adaptive = !options.getAccepted().containsKey(TftpOptions.TIMEOUT);
+        this.timeout = options.getTimeout();
+    }
+
+
+    /**
+     * Records that a packet was sent, and will be waited on.
+     *
+     * @param   retry   True if the packet is a retransmission.
+     */
+    public void sent(boolean retry) {
+
+        if (retry) {
+            retried = true;
+        } else {
+            sent = System.nanoTime();
+            retried = false;
+        }
+        waiting = true;
+    }
+
+
+    /**
+     * Records that the reply to the packet arrived, and takes it as a sample
+     * unless the packet was retransmitted, or was already replied to.
+     */
+    public void received() {
+
+        if (waiting && !retried) {
+            sample(System.nanoTime() - sent);
+        }
+        waiting = false;
+    }
+
+
+    /**
+     * Doubles the timeout after a retransmission, up to {@link #MAX_TIMEOUT}.
+     */
+    public void backoff() {
+
+        if (backoff < Integer.SIZE) {
+            backoff++;
+        }
+    }
+
+
+    /**
+     * Gets the time to wait for a reply before retransmitting.
+     *
+     * @return  The int timeout in milliseconds.
+     */
+    public int getTimeout() {
+
+        long wait = (long) timeout << Math.min(backoff, Integer.SIZE - 1);
+        return (int) Math.min(wait, Math.max(MAX_TIMEOUT, timeout));
+    }
+
+
+    /**
+     * Updates the estimate with a round trip, as described by RFC 6298.
+     *
+     * @param   rtt     The long round trip in nanoseconds.
+     */
+    private void sample(long rtt) {
+
+        backoff = 0;
+        if (!adaptive) {
+            return;
+        }
+
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = rttvar - (rttvar >> 2) + (Math.abs(srtt - rtt) >> 2);
+            srtt = srtt - (srtt >> 3) + (rtt >> 3);
+        }
+
+        long rto = (srtt + 4 * rttvar + 999999) / 1000000;  /* Rounds up to ms */
+        timeout = (int) Math.max(MIN_TIMEOUT, Math.min(rto, MAX_TIMEOUT));
+    }
+}
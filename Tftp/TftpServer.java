@@ -1,10 +1,14 @@
 import java.net.InetAddress;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
-import java.nio.file.Paths;
 import java.nio.file.Path;
-import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Method;
 import java.io.IOException;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
 
@@ -14,30 +18,61 @@ import java.net.SocketTimeoutException;
  * This class extends Thread.
  * Describes the server-side behaviour of Trival File Transfer Protocol.
  *
+ * The TftpServer is a long-lived listener on {@link Tftp#PORT}. Every request
+ * it receives is handed to a new {@link TftpWorker}, which serves the transfer
+ * from its own socket, so any number of clients can download at once. A WRQ
+ * is served the same way, and the upload is written to the directory through
+ * a {@link TftpSink}, forced to disk as {@code -fsync} sets.
+ *
+ * Workers run on a platform thread each by default. With {@code -threads
+ * virtual} they run on Java 21 virtual threads instead, so a session blocked
+ * waiting for an ACK does not hold on to a full platform stack. With {@code
+ * -engine nio} the requests are served by a {@link TftpLoop} instead, which
+ * multiplexes every session on one thread, and {@code -shards N} runs N such
+ * loops on N threads that share the port.
+ *
  * The protocol is based on a simplified version of TFTP RFC 1350.
  * The rules are defined in {@link Tftp} by public constants and static methods.
  *
  * @see 	Tftp
+ * @see 	TftpWorker
  * @see 	TftpClient
  */
 public class TftpServer extends Thread {
 
-	private static volatile boolean running = true;
+	private volatile boolean running = true;
+
+	private final InetAddress addr;
+	private final Path path;
+	private final TftpConfig config;
+	private final String engine;
+	private final int shards;
+	private final ExecutorService sessions;
+	private final TftpCache cache;
+	private final TftpPool pool;
 
-    private final InetAddress addr;
-    private final Path path;
+	private volatile DatagramSocket listener;	/* The blocking listener, once bound */
+	private volatile TftpLoop[] loops;			/* The NIO loops, once started */
 
-    /**
-     * TftpServer constructor.
-     * Resolves this host's local directory.
-     *
-     * @param 	addr  The address of this TftpServer.
-     * @throws 	IOException
-     */
-    public TftpServer(InetAddress addr) throws IOException {
+	/**
+	 * TftpServer constructor.
+	 * Resolves this host's local directory, and creates the executor that
+	 * runs the sessions.
+	 *
+	 * @param 	addr  	The address of this TftpServer.
+	 * @param 	config 	The settings given on the command line.
+	 * @throws 	IOException
+	 */
+	public TftpServer(InetAddress addr, TftpConfig config) throws IOException {
 
 		this.addr = addr;
-		this.path = Tftp.setLocalPath(Tftp.SRC_DIR);
+		this.path = Tftp.setLocalPath(config.getDir());
+		this.config = config;
+		this.engine = config.getEngine();
+		this.shards = config.getShards();
+		this.sessions = newExecutor(config.getThreads());
+		this.cache = new TftpCache(config.getCache());
+		this.pool = new TftpPool();
 	}
 
 
@@ -47,55 +82,93 @@ public class TftpServer extends Thread {
 	 * Starts the main Thread of TftpServer. Creates a new instance, and passes
 	 * it the InetAddress of TftpServer.
 	 *
-	 * @param   args  	The arguments should be empty.
+	 * @param   args  	The arguments, optional flags from command line.
 	 */
 	public static void main(String[] args){
 
-		if (args.length == 0) {
-			System.out.println("\nWelcome to local TftpServer!\n");
+		TftpConfig config;
+		try {
+			config = TftpConfig.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.out.println("Usage: $ java TftpServer [-port N] [-dir path] [-threads platform|virtual] [-engine blocking|nio] [-shards N] [-rollover 0|1] [-fsync none|ack|end] [-log off|error|info|debug]");
+			return;
+		}
+		TftpLog.setLevel(config.getLog());
+
+		System.out.println("\nWelcome to local TftpServer!\n");
+
+		try {
+			InetAddress host = InetAddress.getLocalHost();
+			InetAddress[] array = InetAddress.getAllByName(host.getHostName());
+
+			System.out.println("For the remote client, enter something like:");
+			System.out.println("$ java TftpClient <IP Address> theConcert.jpg");
 
+			System.out.println("\nPossible commands for this machine:\n");
+
+			for (InetAddress addr : array) {
+				String ip = addr.getHostAddress();
+				String cmd = "java TftpClient " + ip + " theConcert.jpg";
+				System.out.println(cmd);
+			}
+
+			TftpServer server = new TftpServer(host, config);
+			server.start();
+			server.join(); /* Waits until the listener times out */
+
+		} catch (InterruptedException e) {
+			TftpLog.error("InterruptedException: " + e.getMessage());
+		} catch (IOException e) {
+			TftpLog.error("IOException: " + e.getMessage());
+		} finally {
+			TftpLog.info("Closing TftpServer...\n");
+		}
+	}
+
+
+	/**
+	 * Stops accepting requests, from any thread, as if the listener had timed
+	 * out. The transfers in progress are served until they finish, then the
+	 * TftpServer thread ends.
+	 */
+	public void shutdown() {
+
+		running = false;
+		DatagramSocket socket = listener;
+		if (socket != null) {
+			socket.close();		/* Wakes the listener from its receive */
+		}
+		TftpLoop[] started = loops;
+		if (started != null) {
+			for (TftpLoop loop : started) {
+				loop.stop();
+			}
+		}
+	}
+
+
+	/**
+	 * Creates the executor that runs each TftpWorker.
+	 *
+	 * Virtual threads are looked up by reflection, so that the program still
+	 * compiles and runs in platform mode on releases older than Java 21.
+	 *
+	 * @param   threads The thread mode, from {@link TftpConfig#getThreads()}.
+	 * @return  The ExecutorService that starts one thread per session.
+	 * @throws  IOException if virtual threads are not supported by this JVM.
+	 */
+	private static ExecutorService newExecutor(String threads) throws IOException {
+
+		if (threads.equals(TftpConfig.VIRTUAL)) {
 			try {
-				InetAddress host = InetAddress.getLocalHost();
-				InetAddress[] array = InetAddress.getAllByName(host.getHostName());
-
-				System.out.println("For the remote client, enter something like:");
-				System.out.println("$ java TftpClient <IP Address> theConcert.jpg");
-
-				System.out.println("\nPossible commands for this machine:\n");
-
-				for (InetAddress addr : array) {
-					String ip = addr.getHostAddress();
-					String cmd = "java TftpClient " + ip + " theConcert.jpg";
-					System.out.println(cmd);
-				}		
-
-				int i = array.length - 1;
-				while (running) {
-
-					/* New server with another IP Address */
-					TftpServer server = new TftpServer(array[i]);
-					server.start();
-
-					/* This is a messy fix! */
-					if (i == 0) {
-						i++;
-					} else {
-						i--;
-					}
-					
-					server.join(); /* Waits for the process to be complete */
-				}			
-
-			} catch (InterruptedException e) {
-				System.out.println("InterruptedException: " + e.getMessage());
-			} catch (IOException e) {
-				System.out.println("IOException: " + e.getMessage());
-			} finally {
-				System.out.println("Closing TftpServer...\n");
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				throw new IOException("Virtual threads require Java 21 or later.");
 			}
 		} else {
-			System.out.println("Too many arguments...");
-			System.out.println("Usage: $ java TftpServer");
+			return Executors.newCachedThreadPool();
 		}
 	}
 
@@ -103,143 +176,113 @@ public class TftpServer extends Thread {
 	/**
 	 * Runs the TftpServer process on start.
 	 *
-	 * Opens a DatagramSocket in the try-with-resources block, then waits,
-	 * until {@link Tftp#TIMEOUT} for a TftpClient's request.
-	 *
-	 * Handles the request by extracting the data from the RRQ DatagramPacket,
-	 * then calls the supporting methods to resolve and package the file.
+	 * Serves the requests with the engine chosen on the command line.
 	 *
-	 * @see 	#transfer(DatagramSocket socket, byte[] file, InetAddress addr, int port)
+	 * @see 	#listen()
+	 * @see 	#loop()
 	 */
 	@Override
 	public void run() {
 
-		try (
-			DatagramSocket client = new DatagramSocket(Tftp.PORT);
-		) {
-			System.out.println("\nWaiting on port " + Tftp.PORT + "...\n");
-           	DatagramPacket pkt = new DatagramPacket(new byte[Tftp.BUFFER], Tftp.BUFFER);
-
-           	client.setSoTimeout(Tftp.TIMEOUT);
-           	client.receive(pkt);
-
-           	System.out.println("\nRequest received!\n");
-            byte[] rrq = pkt.getData();  	/* The data from the request */
-            byte type = rrq[0];             /* The byte Op Code to check */
-
-            InetAddress addr = pkt.getAddress();
-            int port = pkt.getPort();
-
-            try {
-            	/* Checks that the first packet is an RRQ */
-	            if (type == Tftp.RRQ) {
-	            	String fileName = Tftp.getString(rrq);
-
-	            	/* Checks that the file name exists in the request */
-	            	if (fileName != null) {
-	            		Path filePath = Tftp.getFilePath(path, fileName);
-
-	            		/* Checks that the file exists in the path */
-	            		if (filePath != null) {
-
-	            			/* Gets the byte array of the file */
-	            			byte[] file = Tftp.getFileBytes(filePath);
-
-	            			System.out.println("\tFile:\t" + fileName);
-	            			System.out.println("\tPath:\t" + filePath);
-	            			System.out.println("\tSize:\t" + file.length);
-
-	            			/* Transfer file and checks if successful */
-	            			if (transfer(client, file, addr, port)) {
-	            				System.out.println("\nFile transfer was successful!\n");
-	            			} else {
-	            				throw new IOException("Error while transferring packets.");
-	            			}
-	            		} else {
-	            			throw new IOException("File was not found at specified path.");
-	            		}
-	            	} else {
-	            		throw new IOException("File name was not found in request.");
-	            	}
-	            } else {
-	            	throw new IOException("Packet received was not of type RRQ.");
-	          }
-            } catch (IOException e) {
-            	String msg = e.getMessage(); 	/* Gets error message to send out */
-            	client.send(Tftp.errorPacket(msg, addr, port)); /* To TftpClient */
-            	System.out.println("File Not Found: " + msg);	/* To TftpServer */
-            }
-		} catch (SocketTimeoutException e) {
-			running = false;
-			System.out.println("Timeout reached while waiting for a request.");
-		} catch (Exception e) {
-         	System.out.println("Fatal Error: " + e.getMessage());
-         } finally {
-         	System.out.println("\nClosing TftpClient Socket...");
-         }
+		if (engine.equals(TftpConfig.NIO)) {
+			sessions.shutdown();	/* Sessions run on the loops instead */
+			loop();
+		} else {
+			listen();
+		}
 	}
 
 
 	/**
-	 * Transfers the data to the TftpClient.
+	 * Serves the requests with the NIO engine.
 	 *
-	 * Takes the file bytes from the local TftpServer directory, then calls
-	 * the method to package the data into blocks with headers. Once packaged,
-	 * then sends over a block at a time by waiting for the TftpClient to send
-	 * an ACK back for the next.
+	 * Starts one thread for each {@link TftpLoop} shard, then waits for all
+	 * of them to finish. A single shard binds the port on its own, while
+	 * several shards each bind it with SO_REUSEPORT.
+	 *
+	 * @see 	TftpLoop#run()
+	 */
+	private void loop() {
+
+		TftpLoop[] started = new TftpLoop[shards];
+		Thread[] threads = new Thread[shards];
+		for (int i = 0; i < shards; i++) {
+			started[i] = new TftpLoop(path, config, cache, pool, shards > 1);
+			threads[i] = new Thread(started[i], "TftpLoop-" + i);
+			threads[i].start();
+		}
+		loops = started;
+
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			TftpLog.error("InterruptedException: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Listens for requests with the blocking engine.
 	 *
-	 * Will try to resend one packet for a maximum of attemps set by the value
-	 * of {@link Tftp#ATTEMPTS} and returns false if reached.
+	 * Opens a DatagramSocket in the try-with-resources block, then waits,
+	 * until {@link Tftp#TIMEOUT} for a TftpClient's request.
 	 *
-	 * @see 	#dataPacket(byte[] file, InetAddress addr, int port)
+	 * Each request is copied out of the receive buffer and dispatched to a new
+	 * {@link TftpWorker}, then the listener goes straight back to waiting. The
+	 * listener closes once no request has arrived within the timeout, then
+	 * waits for any transfers still in progress to finish.
 	 *
-	 * @param   socket  The DatagramSocket the TftpClient is connected to.
-	 * @param   file    The byte array containing the requested file to send.
-	 * @param   addr    The InetAddress of the destination.
-	 * @param   port    The int port number to send the packets through.
-	 * @return  True if the file transfer was successful, False otherwise.
-	 * @throws  IOException
+	 * @see 	TftpWorker#run()
 	 */
-	private boolean transfer(DatagramSocket socket, byte[] file, InetAddress addr, int port) throws IOException {
-
-        DatagramPacket ack = new DatagramPacket(new byte[Tftp.HEADER], Tftp.HEADER);
-        DatagramPacket[] packets = Tftp.dataPacket(file, addr, port);
-
-        int total = packets.length;
-        int attempts = 0;	/* Failed attempts made to send a block */
-        int block = 0; 		/* The amount of blocks sent, and the index */
-
-        System.out.println("\nTransferring " + total + " packets...\n");
-
-        /**
-         * The following loop will send a packet block on each iteration.
-         *
-         * This loop will break when TftpServer fails to send a packet too many
-         * times, or if any exception is thrown throughout the process.
-         */
-        while (attempts < Tftp.ATTEMPTS) {
-
-		   	socket.send(packets[block]);	/* Sends block to TftpClient */
-
-        	socket.setSoTimeout(Tftp.WAIT); /* Short wait to receive an ACK */
-    		socket.receive(ack);
-
-        	byte[] arr = ack.getData();
-        	int toSend = arr[1] & 0xFF;   	/* Gets the int of ACK'd block */
-        	int next = block + 1;    		/* Calculates the expected block */
-
-        	if (next == total) {
-        		System.out.print("\t\rSent total of " + total + " packets!\r");
-        		socket.send(new DatagramPacket(new byte[0], 0, addr, port));
-       			return true;
-        	} else if (next == toSend) {
-        		System.out.print("\t\rSent " + next + "/" + total + " packets\r");
-        		block = toSend;  /* To send the next block over */
-        	} else {
-        		System.out.print("\n\t\rRetrying packet " + block + "...\r");
-        		attempts++;
-        	}
-      	}
-      	return false; 	/* Return False for failed to send */
-    }
+	private void listen() {
+
+		try (
+			DatagramSocket listener = new DatagramSocket(config.getPort());
+		) {
+			this.listener = listener;
+			TftpLog.info("\nWaiting on port " + config.getPort() + "...\n");
+			DatagramPacket pkt = new DatagramPacket(new byte[Tftp.BUFFER], Tftp.BUFFER);
+
+			listener.setSoTimeout(Tftp.TIMEOUT);
+
+			while (running) {
+
+				pkt.setLength(Tftp.BUFFER);	/* Reset the length for reuse */
+				listener.receive(pkt);
+
+				InetAddress addr = pkt.getAddress();
+				int port = pkt.getPort();
+
+				/* Copy the request, as the buffer is reused by the next */
+				byte[] request = Arrays.copyOf(pkt.getData(), pkt.getLength());
+
+				TftpLog.info("\nRequest received from " + addr.getHostAddress() + ":" + port + "\n");
+
+				sessions.execute(new TftpWorker(path, config, cache, pool, request, addr, port));
+			}
+		} catch (SocketTimeoutException e) {
+			running = false;
+			TftpLog.info("Timeout reached while waiting for a request.");
+		} catch (SocketException e) {
+			if (running) {
+				TftpLog.error("Fatal Error: " + e.getMessage());
+			} else {
+				TftpLog.info("Stopped waiting for requests.");	/* Closed by shutdown */
+			}
+		} catch (Exception e) {
+			TftpLog.error("Fatal Error: " + e.getMessage());
+		} finally {
+			TftpLog.info("\nClosing TftpServer Socket...");
+			sessions.shutdown();
+		}
+
+		try {
+			/* Virtual threads are daemons, so wait for them to finish */
+			sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			TftpLog.error("InterruptedException: " + e.getMessage());
+		}
+	}
 }
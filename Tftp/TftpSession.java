@@ -0,0 +1,280 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.io.IOException;
+
+
+/**
+ * TftpSession class.
+ *
+ * This class extends TftpLoop.Session.
+ * The state machine of a single RRQ served by a {@link TftpLoop}.
+ *
+ * It follows {@link TftpWorker#run()} and the transfer loop of TftpWorker step
+ * for step, including the OACK of any options, except that it never blocks.
+ * Each packet the loop reads is passed to {@link #receive(ByteBuffer, long)},
+ * which sends whatever the blocking loop would have sent next, and waiting
+ * for an ACK is a timer on the wheel.
+ *
+ * @see 	TftpLoop
+ * @see 	TftpWorker
+ */
+public class TftpSession extends TftpLoop.Session {
+
+	private final TftpLoop loop;
+	private final DatagramChannel channel;
+	private final Path path;
+	private final TftpConfig config;
+	private final int rollover;		/* The block number after MAX_BLOCK */
+
+	private ByteBuffer packet;		/* The DATA packet of the current block */
+	private TftpFrames frames;		/* The packets of a file held, or null */
+	private ByteBuffer view;		/* The view of this session over the frames */
+	private ByteBuffer oack;		/* The OACK, until the client confirms it */
+
+	private TftpSource file;		/* The file, read a block at a time */
+	private TftpProgress progress;	/* The blocks ACK'd, for the log */
+	private int blksize;			/* The negotiated block size */
+	private int windowsize;			/* The negotiated window size */
+	private TftpRtt rtt;			/* The wait for an ACK */
+	private long total;				/* The amount of blocks to send */
+	private int attempts;			/* Resends of the window after a timeout */
+	private long block;				/* The amount of blocks ACK'd, and the index */
+	private long end;				/* The index after the last block sent */
+
+	/**
+	 * TftpSession constructor.
+	 *
+	 * @param 	loop 		The TftpLoop that owns the session.
+	 * @param 	channel 	The DatagramChannel connected to the TftpClient.
+	 * @param 	path 		The local directory of the TftpServer.
+	 * @param 	config 		The settings of the TftpServer.
+	 */
+	public TftpSession(TftpLoop loop, DatagramChannel channel, Path path, TftpConfig config) {
+
+		this.loop = loop;
+		this.channel = channel;
+		this.path = path;
+		this.config = config;
+		this.rollover = config.getRollover();
+	}
+
+
+	/**
+	 * Gets the channel of this session.
+	 *
+	 * @return  The DatagramChannel connected to the TftpClient.
+	 */
+	@Override
+	public DatagramChannel getChannel() {
+
+		return channel;
+	}
+
+
+	/**
+	 * Starts the session with the request received by the listener.
+	 *
+	 * Resolves and opens the file, then sends the OACK if any options were
+	 * accepted, or else the first block. If the request can't be served,
+	 * sends an ERROR packet and closes the session.
+	 *
+	 * @param 	request 	The bytes of the request, trimmed to its length.
+	 * @param 	now 		The long current time in milliseconds.
+	 */
+	@Override
+	public void start(byte[] request, long now) {
+
+		try {
+			/* Checks that the first packet is an RRQ */
+			if (Tftp.getOpcode(request) != Tftp.RRQ) {
+				throw new IOException("Packet received was not of type RRQ.");
+			}
+
+			String fileName = Tftp.getString(request, Tftp.OFFSET);
+			Tftp.getMode(request);		/* Checks the mode is octet */
+			Path filePath = Tftp.getFilePath(path, fileName);
+			file = loop.getCache().open(filePath);
+			TftpOptions options = TftpOptions.negotiate(Tftp.getOptions(request), config, file.size());
+
+			TftpLog.info("\tFile:\t" + fileName);
+			TftpLog.info("\tPath:\t" + filePath);
+			TftpLog.info("\tSize:\t" + file.size());
+
+			blksize = options.getBlksize();
+			windowsize = options.getWindowsize();
+			rtt = new TftpRtt(options);
+			total = Tftp.getTotalBlocks(file.size(), blksize);
+			frames = file.getFrames(blksize, rollover);
+			if (frames != null) {
+				view = frames.view();
+			} else {
+				packet = loop.getPool().acquire(blksize + Tftp.HEADER);
+			}
+
+			if (!options.getAccepted().isEmpty()) {
+				DatagramPacket pkt = Tftp.oackPacket(options.getAccepted(), null, 0);
+				oack = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+			}
+
+			TftpLog.info("\nTransferring " + total + " packets...\n");
+
+			InetSocketAddress client = (InetSocketAddress) channel.getRemoteAddress();
+			progress = new TftpProgress(client.getAddress().getHostAddress() + ":" + client.getPort(), "Sent", TftpLog.DEBUG);
+			progress.setTotal(total);
+
+			send(false, now);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Handles a packet from the TftpClient, which should be an ACK.
+	 *
+	 * An ACK that doesn't move the window on is a duplicate, and is ignored
+	 * so that it isn't answered twice, leaving the timer to run. An ERROR
+	 * from the TftpClient ends the session.
+	 *
+	 * @param 	buffer 	The ByteBuffer to read the packet into.
+	 * @param 	now 	The long current time in milliseconds.
+	 * @throws 	IOException
+	 */
+	@Override
+	public void receive(ByteBuffer buffer, long now) throws IOException {
+
+		buffer.limit(Tftp.HEADER);	/* The same size as the blocking ACK */
+		if (channel.read(buffer) < 0) {
+			return;
+		}
+
+		int type = (buffer.position() >= Tftp.OFFSET) ? buffer.getShort(0) & 0xFFFF : -1;
+		int toSend = (buffer.position() == Tftp.HEADER) ? buffer.getShort(2) & 0xFFFF : -1;
+		long acked = (toSend < 0) ? -1 : Tftp.getSequence(toSend, block, rollover);
+
+		if (oack != null) {
+			if (type == Tftp.ACK && toSend == 0) {
+				oack = null;		/* Options confirmed, DATA follows */
+				rtt.received();
+				attempts = 0;
+				send(false, now);
+			} else if (type == Tftp.ERROR) {
+				fail("Error while transferring packets.");
+			}
+		} else if (type == Tftp.ERROR) {
+			fail("Error while transferring packets.");
+		} else if (type != Tftp.ACK) {
+			return;					/* Not an ACK, the timer is left to run */
+		} else if (acked == total) {
+			progress.update(acked);		/* The short last block was ACK'd */
+			progress.stop();
+			TftpLog.info("\nFile transfer was successful!\n");
+			loop.close(this);
+		} else if (acked > block && acked <= end) {
+			progress.update(acked);
+			rtt.received();
+			block = acked;			/* To send the next window over */
+			attempts = 0;
+			send(false, now);
+		}
+	}
+
+
+	/**
+	 * Resends the OACK or the window once no ACK has arrived within the
+	 * timeout of the {@link TftpRtt}, which is then doubled. Fails the session
+	 * once the retries of the configuration have run out.
+	 */
+	@Override
+	protected void expire() {
+
+		rtt.backoff();		/* Waits twice as long for the resend */
+		if (++attempts <= config.getRetries()) {
+			try {
+				send(true, TftpLoop.now());
+			} catch (IOException | InternalError e) {
+				fail(e.getMessage());	/* The mapped file was truncated */
+			}
+		} else {
+			fail("Receive timed out");
+		}
+	}
+
+
+	/**
+	 * Closes the file of this session, if it was opened, stops its progress,
+	 * and gives its packet buffer back to the pool.
+	 */
+	@Override
+	public void close() {
+
+		if (progress != null) {
+			progress.stop();
+		}
+		if (packet != null) {
+			loop.getPool().release(packet);
+			packet = null;
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				TftpLog.error("IOException: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Sends the OACK or the current window of blocks, and waits for an ACK.
+	 *
+	 * A file held by the cache is sent straight from its frames, which the
+	 * channel writes without a copy. Otherwise each block is read from the
+	 * file straight into the packet buffer, which is reused for every block
+	 * of the session.
+	 *
+	 * @param 	retry 	True if the OACK or window is being resent.
+	 * @param 	now 	The long current time in milliseconds.
+	 * @throws 	IOException
+	 */
+	private void send(boolean retry, long now) throws IOException {
+
+		if (oack != null) {
+			channel.write(oack.duplicate());
+		} else {
+			end = Math.min(block + windowsize, total);
+			for (long next = block; next < end; next++) {
+				if (frames != null) {
+					frames.frame(next, view);
+					channel.write(view);
+				} else {
+					Tftp.dataPacket(file, next, blksize, rollover, packet);
+					channel.write(packet);
+				}
+			}
+		}
+		rtt.sent(retry);
+		loop.getWheel().schedule(this, rtt.getTimeout(), now);
+	}
+
+
+	/**
+	 * Sends an ERROR packet with the message, then closes the session.
+	 *
+	 * @param 	msg 	The String error message to send.
+	 */
+	private void fail(String msg) {
+
+		try {
+			DatagramPacket error = Tftp.errorPacket(msg, null, 0);
+			channel.write(ByteBuffer.wrap(error.getData(), 0, error.getLength()));
+		} catch (IOException e) {
+			TftpLog.error("IOException: " + e.getMessage());
+		}
+		TftpLog.error("File Not Found: " + msg);
+		loop.close(this);
+	}
+}
@@ -0,0 +1,144 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * TftpSink class.
+ *
+ * The file that an upload is written to, one block at a time.
+ *
+ * Each block of a WRQ is written straight from the packet to its place in the
+ * file with a positional write on a FileChannel, so nothing of the upload is
+ * held in memory beyond the packet being received. The blocks are written to
+ * a temporary file next to the target, which only replaces the target once
+ * the last block has arrived, by renaming it in one step. A client that reads
+ * the file meanwhile, or an upload that fails half way, never leaves a file
+ * that is partly written in its place.
+ *
+ * When the file is forced to disk is set by {@link TftpConfig#getFsync()}.
+ *
+ * @see     TftpWorker
+ * @see     TftpUpload
+ */
+public class TftpSink implements Closeable {
+
+    public static final String SUFFIX = ".part";    /* Of the temporary file */
+
+    private final Path target;          /* The path the upload replaces */
+    private final Path temp;            /* The path written to until then */
+    private final FileChannel channel;
+    private final String fsync;         /* The fsync policy of TftpConfig */
+    private boolean committed;          /* True once renamed to the target */
+    private boolean dirty;              /* True if written since last forced */
+
+    /**
+     * TftpSink constructor.
+     * Creates the temporary file in the same directory as the target.
+     *
+     * @param   target  The Path the upload is written to once complete.
+     * @param   fsync   The String fsync policy of the configuration.
+     * @throws  IOException
+     */
+    public TftpSink(Path target, String fsync) throws IOException {
+
+        this.target = target;
+        this.temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), SUFFIX);
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        this.fsync = fsync;
+    }
+
+
+    /**
+     * Writes the bytes of one block to its place in the file, from the
+     * position of the buffer to its limit.
+     *
+     * @param   block   The long index of the block, starting at 0.
+     * @param   blksize The int amount of file bytes in each block.
+     * @param   src     The ByteBuffer holding the bytes of the block.
+     * @throws  IOException
+     */
+    public void write(long block, int blksize, ByteBuffer src) throws IOException {
+
+        long position = block * blksize;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+        dirty = true;
+    }
+
+
+    /**
+     * Forces the blocks written so far to disk before they are ACK'd, if the
+     * policy is {@link TftpConfig#ACK}. It is called before every ACK, and
+     * only forces the file if a block was written since the last time, so an
+     * ACK of a repeated block costs nothing.
+     *
+     * @throws  IOException
+     */
+    public void flush() throws IOException {
+
+        if (dirty && fsync.equals(TftpConfig.ACK)) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+
+    /**
+     * Completes the upload once every block is written. Forces the file to
+     * disk unless the policy is {@link TftpConfig#NONE}, then renames it to
+     * the target, replacing any file that was there.
+     *
+     * @throws  IOException
+     */
+    public void commit() throws IOException {
+
+        boolean force = !fsync.equals(TftpConfig.NONE);
+        if (force) {
+            channel.force(true);
+        }
+        channel.close();
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        committed = true;
+
+        if (force) {
+            forceDirectory();
+        }
+    }
+
+
+    /**
+     * Closes the file, and deletes it if the upload was not committed.
+     *
+     * @throws  IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+
+    /**
+     * Forces the directory of the target to disk, so that the rename is kept
+     * as well. Not every platform can open a directory, in which case the
+     * rename is left to the file system.
+     */
+    private void forceDirectory() {
+
+        try (FileChannel dir = FileChannel.open(target.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            /* The directory can't be forced on this platform */
+        }
+    }
+}
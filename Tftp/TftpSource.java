@@ -0,0 +1,53 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * TftpSource interface.
+ *
+ * The source of the blocks of a file that is being sent.
+ *
+ * A block is only produced when it is asked for, straight into a buffer owned
+ * by the caller, so a session can reuse one buffer for every block it sends
+ * and never builds blocks that the client does not ask for.
+ *
+ * @see     Tftp#dataPacket(TftpSource source, long block, int blksize, int rollover, ByteBuffer buf)
+ * @see     TftpFile
+ */
+public interface TftpSource extends Closeable {
+
+    /**
+     * Gets the size of the file.
+     *
+     * @return  The long size of the file in bytes.
+     */
+    long size();
+
+
+    /**
+     * Reads the bytes of one block into the buffer, at its position.
+     *
+     * @param   block   The long index of the block, starting at 0.
+     * @param   blksize The int amount of file bytes in each block.
+     * @param   dst     The ByteBuffer to read into, with room for the block.
+     * @return  The int amount of bytes read, less than a full block if last.
+     * @throws  IOException
+     */
+    int read(long block, int blksize, ByteBuffer dst) throws IOException;
+
+
+    /**
+     * Gets every block of the file already framed as DATA packets, if this
+     * source keeps them, so they need not be read and encoded again.
+     *
+     * @param   blksize     The int amount of file bytes in each block.
+     * @param   rollover    The int block number to roll over to, 0 or 1.
+     * @return  The TftpFrames of the file, or null if the blocks are read.
+     * @throws  IOException
+     */
+    default TftpFrames getFrames(int blksize, int rollover) throws IOException {
+
+        return null;
+    }
+}
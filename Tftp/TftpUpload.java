@@ -0,0 +1,309 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.io.IOException;
+
+
+/**
+ * TftpUpload class.
+ *
+ * This class extends TftpLoop.Session.
+ * The state machine of a single WRQ served by a {@link TftpLoop}.
+ *
+ * It follows the upload loop of {@link TftpWorker} step for step, except that
+ * it never blocks. Each block is read from the channel straight into a direct
+ * buffer from the {@link TftpPool}, and written from there to its place in the
+ * {@link TftpSink}, so the file is never copied through the Java heap.
+ *
+ * Once the last block is ACK'd, the session stays open for twice the timeout,
+ * and ACKs the last block again if the TftpClient resends it.
+ *
+ * @see 	TftpLoop
+ * @see 	TftpWorker
+ */
+public class TftpUpload extends TftpLoop.Session {
+
+	private final TftpLoop loop;
+	private final DatagramChannel channel;
+	private final Path path;
+	private final TftpConfig config;
+	private final ByteBuffer ack;	/* Reused for every ACK */
+
+	private ByteBuffer packet;		/* The DATA packet of the current block */
+	private ByteBuffer last;		/* The OACK or last ACK, to resend */
+
+	private TftpSink sink;			/* The file, written a block at a time */
+	private TftpProgress progress;	/* The blocks received, for the log */
+	private int blksize;			/* The negotiated block size */
+	private int windowsize;			/* The negotiated window size */
+	private int rollover;			/* Detected at the first rollover */
+	private TftpRtt rtt;			/* The wait for a block */
+	private int attempts;			/* Resends of the last ACK after a timeout */
+	private long block;				/* The amount of blocks written */
+	private int received;			/* Blocks received since the last ACK */
+	private boolean gap;			/* True once a gap has been ACK'd */
+	private boolean done;			/* True once the last block is ACK'd */
+
+	/**
+	 * TftpUpload constructor.
+	 *
+	 * @param 	loop 		The TftpLoop that owns the session.
+	 * @param 	channel 	The DatagramChannel connected to the TftpClient.
+	 * @param 	path 		The local directory of the TftpServer.
+	 * @param 	config 		The settings of the TftpServer.
+	 */
+	public TftpUpload(TftpLoop loop, DatagramChannel channel, Path path, TftpConfig config) {
+
+		this.loop = loop;
+		this.channel = channel;
+		this.path = path;
+		this.config = config;
+		this.ack = ByteBuffer.allocate(Tftp.HEADER);
+		this.rollover = config.getRollover();
+	}
+
+
+	/**
+	 * Gets the channel of this session.
+	 *
+	 * @return  The DatagramChannel connected to the TftpClient.
+	 */
+	@Override
+	public DatagramChannel getChannel() {
+
+		return channel;
+	}
+
+
+	/**
+	 * Starts the session with the request received by the listener.
+	 *
+	 * Resolves and creates the file, then sends the OACK if any options were
+	 * accepted, or else an ACK of block 0. If the request can't be served,
+	 * sends an ERROR packet and closes the session.
+	 *
+	 * @param 	request 	The bytes of the request, trimmed to its length.
+	 * @param 	now 		The long current time in milliseconds.
+	 */
+	@Override
+	public void start(byte[] request, long now) {
+
+		try {
+			String fileName = Tftp.getString(request, Tftp.OFFSET);
+			Tftp.getMode(request);		/* Checks the mode is octet */
+			Path filePath = Tftp.getUploadPath(path, fileName);
+			sink = new TftpSink(filePath, config.getFsync());
+			TftpOptions options = TftpOptions.negotiateUpload(Tftp.getOptions(request), config);
+
+			TftpLog.info("\tFile:\t" + fileName);
+			TftpLog.info("\tPath:\t" + filePath);
+			TftpLog.info("\tSize:\t" + options.getTsize());
+
+			blksize = options.getBlksize();
+			windowsize = options.getWindowsize();
+			rtt = new TftpRtt(options);
+			packet = loop.getPool().acquire(blksize + Tftp.HEADER);
+
+			if (!options.getAccepted().isEmpty()) {
+				DatagramPacket pkt = Tftp.oackPacket(options.getAccepted(), null, 0);
+				last = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+			} else {
+				last = ackPacket(0);
+			}
+
+			InetSocketAddress client = (InetSocketAddress) channel.getRemoteAddress();
+			progress = new TftpProgress(client.getAddress().getHostAddress() + ":" + client.getPort(), "Received", TftpLog.DEBUG);
+			if (options.getTsize() >= 0) {
+				progress.setTotal(Tftp.getTotalBlocks(options.getTsize(), blksize));
+			}
+
+			send(false, now);
+		} catch (IOException e) {
+			fail(e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Handles a packet from the TftpClient, which should be a DATA block.
+	 *
+	 * A block in order is written to the file, and ACK'd at the end of each
+	 * window. The first block out of order, or a repeat of the last block, is
+	 * answered with an ACK of the last block written, so that the window is
+	 * resent from there. A short block ends the upload, which is committed
+	 * before the block is ACK'd. An ERROR from the TftpClient ends the session.
+	 *
+	 * @param 	buffer 	The ByteBuffer of the loop, unused as blocks can be larger.
+	 * @param 	now 	The long current time in milliseconds.
+	 * @throws 	IOException
+	 */
+	@Override
+	public void receive(ByteBuffer buffer, long now) throws IOException {
+
+		packet.clear().limit(blksize + Tftp.HEADER);	/* Of its size class */
+		if (channel.read(packet) <= 0) {
+			return;
+		}
+
+		int length = packet.position();
+		int type = (length >= Tftp.OFFSET) ? packet.getShort(0) & 0xFFFF : -1;
+
+		if (done) {
+			if (type == Tftp.DATA) {
+				channel.write(last.rewind());	/* The last ACK was lost */
+			}
+			return;
+		} else if (type == Tftp.ERROR) {
+			fail("Error while receiving packets.");
+			return;
+		} else if (type != Tftp.DATA || length < Tftp.HEADER) {
+			return;					/* Not a block, the timer is left to run */
+		}
+
+		attempts = 0;
+		long next = block + 1;
+		int number = packet.getShort(2) & 0xFFFF;	/* The 2-byte block number */
+		if (next == Tftp.MAX_BLOCK + 1 && number == Tftp.blockNumber(next, 1 - rollover)) {
+			rollover = 1 - rollover;
+		}
+
+		if (number == Tftp.blockNumber(next, rollover)) {
+			packet.limit(length).position(Tftp.HEADER);
+			sink.write(block, blksize, packet);
+			block = next;
+			progress.update(block);
+			rtt.received();
+			gap = false;
+			received++;
+
+			if (length - Tftp.HEADER < blksize) {
+				sink.commit();		/* Forced to disk before the last ACK */
+				channel.write(last = ackPacket(Tftp.blockNumber(block, rollover)));
+				done = true;
+				progress.stop();
+				TftpLog.info("\nFile upload was successful!\n");
+				loop.getWheel().schedule(this, rtt.getTimeout() * 2L, now);
+				return;
+			} else if (received >= windowsize) {
+				sink.flush();
+				last = ackPacket(Tftp.blockNumber(block, rollover));
+				send(false, now);
+				return;
+			}
+		} else {
+			/* ACK a repeat of the last block, or the first gap */
+			boolean repeat = number == Tftp.blockNumber(block, rollover);
+			boolean answer = repeat || !gap;
+			gap = gap || !repeat;
+			if (answer) {
+				sink.flush();		/* It ACKs the blocks since the last */
+				last = ackPacket(Tftp.blockNumber(block, rollover));
+				send(false, now);
+				return;
+			}
+		}
+		loop.getWheel().schedule(this, rtt.getTimeout(), now);
+	}
+
+
+	/**
+	 * Resends the OACK or the last ACK once no block has arrived within the
+	 * timeout of the {@link TftpRtt}, which is then doubled. Fails the session
+	 * once the retries of the configuration have run out. Once the upload is
+	 * done, closes the session instead.
+	 */
+	@Override
+	protected void expire() {
+
+		if (done) {
+			loop.close(this);
+			return;
+		}
+
+		rtt.backoff();		/* Waits twice as long for the resend */
+		if (++attempts <= config.getRetries()) {
+			try {
+				send(true, TftpLoop.now());
+			} catch (IOException e) {
+				fail(e.getMessage());
+			}
+		} else {
+			fail("Receive timed out");
+		}
+	}
+
+
+	/**
+	 * Stops the progress of this session, gives its packet buffer back to the
+	 * pool, and closes its file, which is deleted unless it was committed.
+	 */
+	@Override
+	public void close() {
+
+		if (progress != null) {
+			progress.stop();
+		}
+		if (packet != null) {
+			loop.getPool().release(packet);
+			packet = null;
+		}
+		if (sink != null) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				TftpLog.error("IOException: " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Sends the OACK or the last ACK, and waits for the next block.
+	 *
+	 * @param 	retry 	True if the packet is being resent.
+	 * @param 	now 	The long current time in milliseconds.
+	 * @throws 	IOException
+	 */
+	private void send(boolean retry, long now) throws IOException {
+
+		channel.write(last.rewind());
+		rtt.sent(retry);
+		received = 0;
+		loop.getWheel().schedule(this, rtt.getTimeout(), now);
+	}
+
+
+	/**
+	 * Encodes an ACK into the buffer of this session.
+	 *
+	 * @param 	number 	The int block number to acknowledge.
+	 * @return  The ByteBuffer of the ACK, from its start to its end.
+	 */
+	private ByteBuffer ackPacket(int number) {
+
+		ack.clear();
+		ack.putShort(0, Tftp.ACK);
+		ack.putShort(2, (short) number);
+		return ack;
+	}
+
+
+	/**
+	 * Sends an ERROR packet with the message, then closes the session.
+	 *
+	 * @param 	msg 	The String error message to send.
+	 */
+	private void fail(String msg) {
+
+		try {
+			DatagramPacket error = Tftp.errorPacket(msg, null, 0);
+			channel.write(ByteBuffer.wrap(error.getData(), 0, error.getLength()));
+		} catch (IOException e) {
+			TftpLog.error("IOException: " + e.getMessage());
+		}
+		TftpLog.error("File Not Found: " + msg);
+		loop.close(this);
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * TftpWheel class.
+ *
+ * A hashed timer wheel for the retransmit timers of the {@link TftpLoop}.
+ *
+ * The wheel is an array of slots, each one a list of the timers that expire
+ * on that tick. Scheduling and cancelling a timer are constant time, as each
+ * {@link Timer} is linked into its slot directly, and no objects are created
+ * while the wheel is turning. Timers further away than one turn of the wheel
+ * keep a count of the rounds left before they expire.
+ *
+ * The wheel is not thread-safe, it belongs to the one thread of its loop.
+ *
+ * @see     TftpLoop
+ * @see     TftpSession
+ */
+public class TftpWheel {
+
+    private final long tick;        /* Milliseconds per slot */
+    private final int mask;         /* Slots - 1, the slots are a power of 2 */
+    private final Timer[] slots;    /* The head of the list in each slot */
+
+    private long cursor;            /* The tick count, the slot last expired */
+    private long lastTick;          /* The time in ms of the last tick */
+    private int size;               /* The amount of timers scheduled */
+
+    /**
+     * TftpWheel constructor.
+     *
+     * @param   tick    The long milliseconds between each tick.
+     * @param   slots   The int amount of slots, rounded up to a power of 2.
+     * @param   now     The long current time in milliseconds.
+     */
+    public TftpWheel(long tick, int slots, long now) {
+
+        int length = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+
+        this.tick = tick;
+        this.mask = length - 1;
+        this.slots = new Timer[length];
+        this.lastTick = now;
+    }
+
+
+    /**
+     * Schedules the timer to expire after the delay, replacing any deadline
+     * it already had.
+     *
+     * The amount of ticks is rounded up from the last tick, so that a timer
+     * never expires earlier than the delay asked for.
+     *
+     * @param   timer   The Timer to schedule.
+     * @param   delay   The long milliseconds until the timer expires.
+     * @param   now     The long current time in milliseconds.
+     */
+    public void schedule(Timer timer, long delay, long now) {
+
+        cancel(timer);
+
+        long ticks = (now - lastTick + Math.max(delay, 0) + tick - 1) / tick;
+        ticks = Math.max(ticks, 1);
+
+        timer.rounds = (ticks - 1) / slots.length;
+        timer.slot = (int) ((cursor + ticks) & mask);
+        link(timer);
+        size++;
+    }
+
+
+    /**
+     * Cancels the timer if it is scheduled.
+     *
+     * @param   timer   The Timer to cancel.
+     */
+    public void cancel(Timer timer) {
+
+        if (timer.slot >= 0) {
+            unlink(timer);
+            size--;
+        }
+    }
+
+
+    /**
+     * Advances the wheel to the current time, and expires every timer that
+     * is due on each of the ticks passed.
+     *
+     * A slot is detached before it is walked, so that a timer which schedules
+     * itself again while expiring is never visited twice on the same tick.
+     *
+     * @param   now     The long current time in milliseconds.
+     */
+    public void advance(long now) {
+
+        while (now - lastTick >= tick) {
+            lastTick += tick;
+            cursor++;
+
+            int index = (int) (cursor & mask);
+            Timer timer = slots[index];
+            slots[index] = null;
+
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.next = null;
+                timer.prev = null;
+
+                if (timer.rounds > 0) {
+                    timer.rounds--;
+                    link(timer);
+                } else {
+                    timer.slot = -1;
+                    size--;
+                    timer.expire();
+                }
+                timer = next;
+            }
+        }
+    }
+
+
+    /**
+     * Gets the time until the wheel should be advanced again.
+     *
+     * @param   now     The long current time in milliseconds.
+     * @return  The long milliseconds until the next tick, or 0 if no timer is
+     *          scheduled.
+     */
+    public long untilNextTick(long now) {
+
+        if (size == 0) {
+            return 0;
+        }
+        return Math.max(lastTick + tick - now, 1);
+    }
+
+
+    /**
+     * Links the timer at the head of its slot.
+     *
+     * @param   timer   The Timer to link.
+     */
+    private void link(Timer timer) {
+
+        Timer head = slots[timer.slot];
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[timer.slot] = timer;
+    }
+
+
+    /**
+     * Unlinks the timer from its slot.
+     *
+     * @param   timer   The Timer to unlink.
+     */
+    private void unlink(Timer timer) {
+
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.next = null;
+        timer.prev = null;
+        timer.slot = -1;
+    }
+
+
+    /**
+     * Timer class.
+     *
+     * The node of a TftpWheel slot. Extended by anything that needs a timeout
+     * on the loop, such as a {@link TftpSession} waiting for an ACK.
+     */
+    public abstract static class Timer {
+
+        private Timer next;
+        private Timer prev;
+        private int slot = -1;      /* The slot linked into, -1 if idle */
+        private long rounds;        /* The turns of the wheel left to wait */
+
+        /**
+         * Called by the wheel once the timer has expired.
+         * It may schedule this timer again, but no other timer.
+         */
+        protected abstract void expire();
+    }
+}
@@ -0,0 +1,566 @@
+import java.net.InetAddress;
+import java.net.DatagramSocket;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+
+/**
+ * TftpWorker class.
+ *
+ * This class implements Runnable.
+ * Serves a single RRQ or WRQ that was received by the {@link TftpServer}
+ * listener.
+ *
+ * Each worker opens its own DatagramChannel on an ephemeral port, which acts as
+ * the server's transfer identifier (TID) as described by RFC 1350. The client
+ * learns this port from the first DATA packet and sends its ACKs there, which
+ * leaves {@link Tftp#PORT} free to accept requests from other clients.
+ *
+ * The worker does not own a thread. TftpServer submits it to an executor,
+ * which runs it on either a platform thread or a virtual thread.
+ *
+ * @see 	Tftp
+ * @see 	TftpServer
+ * @see 	TftpClient
+ */
+public class TftpWorker implements Runnable {
+
+	private final Path path;
+	private final TftpConfig config;
+	private final TftpCache cache;
+	private final TftpPool pool;
+	private final byte[] request;
+	private final InetAddress addr;
+	private final int port;
+
+	/**
+	 * TftpWorker constructor.
+	 *
+	 * @param 	path  	The local directory of the TftpServer.
+	 * @param 	config 	The settings of the TftpServer.
+	 * @param 	cache 	The TftpCache of the files requested most.
+	 * @param 	pool 	The TftpPool of packet buffers.
+	 * @param 	request The bytes of the request, trimmed to the packet length.
+	 * @param 	addr  	The InetAddress of the TftpClient.
+	 * @param 	port  	The int port of the TftpClient.
+	 */
+	public TftpWorker(Path path, TftpConfig config, TftpCache cache, TftpPool pool, byte[] request, InetAddress addr, int port) {
+
+		this.path = path;
+		this.config = config;
+		this.cache = cache;
+		this.pool = pool;
+		this.request = request;
+		this.addr = addr;
+		this.port = port;
+	}
+
+
+	/**
+	 * Runs the TftpWorker process when it is executed.
+	 *
+	 * Opens a DatagramChannel on an ephemeral port in the try-with-resources
+	 * block, connected to the TftpClient, then handles the request by
+	 * extracting the data from the RRQ and calling the supporting methods to
+	 * resolve and package the file, or from the WRQ to receive the file.
+	 *
+	 * Any failure of the transfer is sent to the TftpClient as an ERROR. That
+	 * includes the InternalError (SIGBUS) a mapped file raises when it is
+	 * truncated while being sent, as in the NIO engine.
+	 *
+	 * @see 	#transfer(DatagramChannel channel, TftpSource file, TftpOptions options, InetAddress addr, int port)
+	 * @see 	#upload(DatagramChannel channel, TftpSink sink, TftpOptions options, InetAddress addr, int port)
+	 */
+	@Override
+	public void run() {
+
+		try (
+			DatagramChannel client = DatagramChannel.open();
+		) {
+			client.connect(new InetSocketAddress(addr, port));
+			int type = Tftp.getOpcode(request);	/* The Op Code to check */
+
+			try {
+				/* Checks that the first packet is an RRQ */
+				if (type == Tftp.RRQ) {
+					String fileName = Tftp.getString(request, Tftp.OFFSET);
+					Tftp.getMode(request);	/* Checks the mode is octet */
+
+					/* Checks that the file name exists in the request */
+					if (fileName != null) {
+						Path filePath = Tftp.getFilePath(path, fileName);
+
+						/* Checks that the file exists in the path */
+						if (filePath != null) {
+
+							/* Opens the file to read a block at a time, or from memory */
+							try (TftpSource file = cache.open(filePath)) {
+
+								/* Negotiates the options appended to the request */
+								TftpOptions options = TftpOptions.negotiate(Tftp.getOptions(request), config, file.size());
+
+								TftpLog.info("\tFile:\t" + fileName);
+								TftpLog.info("\tPath:\t" + filePath);
+								TftpLog.info("\tSize:\t" + file.size());
+
+								/* Transfer file and checks if successful */
+								if (transfer(client, file, options, addr, port)) {
+									TftpLog.info("\nFile transfer was successful!\n");
+								} else {
+									throw new IOException("Error while transferring packets.");
+								}
+							}
+						} else {
+							throw new IOException("File was not found at specified path.");
+						}
+					} else {
+						throw new IOException("File name was not found in request.");
+					}
+				} else if (type == Tftp.WRQ) {
+					String fileName = Tftp.getString(request, Tftp.OFFSET);
+					Tftp.getMode(request);	/* Checks the mode is octet */
+					Path filePath = Tftp.getUploadPath(path, fileName);
+
+					/* Creates the file to write a block at a time, renamed once complete */
+					try (TftpSink sink = new TftpSink(filePath, config.getFsync())) {
+
+						/* Negotiates the options appended to the request */
+						TftpOptions options = TftpOptions.negotiateUpload(Tftp.getOptions(request), config);
+
+						TftpLog.info("\tFile:\t" + fileName);
+						TftpLog.info("\tPath:\t" + filePath);
+						TftpLog.info("\tSize:\t" + options.getTsize());
+
+						/* Receives the file and checks if successful */
+						if (upload(client, sink, options, addr, port)) {
+							TftpLog.info("\nFile upload was successful!\n");
+						} else {
+							throw new IOException("Error while receiving packets.");
+						}
+					}
+				} else {
+					throw new IOException("Packet received was not of type RRQ or WRQ.");
+				}
+			} catch (IOException | InternalError e) {
+				/* An InternalError is a mapped file truncated while being sent */
+				String msg = e.getMessage(); 	/* Gets error message to send out */
+				client.socket().send(Tftp.errorPacket(msg, addr, port)); /* To TftpClient */
+				TftpLog.error("File Not Found: " + msg);	/* To TftpServer */
+			}
+		} catch (Exception e) {
+			TftpLog.error("Fatal Error: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Transfers the data to the TftpClient.
+	 *
+	 * Reads the file from the local TftpServer directory one block at a time,
+	 * encoding each block with its header into the same packet just before it
+	 * is sent. A file held by the cache is already framed, and each packet is
+	 * written straight out of its {@link TftpFrames}. Sends over a block at a
+	 * time by waiting for the TftpClient to send an ACK back for the next, so
+	 * only the current block is ever held in memory.
+	 *
+	 * Blocks are counted with a long, and the 2-byte number of each block
+	 * rolls over past {@link Tftp#MAX_BLOCK} as set by the configuration, so
+	 * the file can have any amount of blocks.
+	 *
+	 * If options were accepted, they are acknowledged first, and the blocks
+	 * are sized by the negotiated block size. With a window size above 1,
+	 * that many blocks are sent back to back before waiting for an ACK, and
+	 * the next window starts after the last block the TftpClient ACK'd.
+	 *
+	 * The wait for each ACK follows the round trip time measured by a
+	 * {@link TftpRtt}, or the negotiated timeout, and doubles each time the
+	 * window is resent. Only a timeout resends the window, and an ACK that
+	 * doesn't move the window on is ignored, as a duplicate ACK answered with
+	 * a duplicate window would double every packet from then on (RFC 1123).
+	 * Will resend one window as many times as the retries of the configuration,
+	 * {@link Tftp#ATTEMPTS} by default, and returns false if reached.
+	 *
+	 * The packet buffer is taken from the {@link TftpPool}, and nothing is
+	 * allocated for each block sent or ACK received.
+	 *
+	 * @see 	Tftp#dataPacket(TftpSource source, long block, int blksize, int rollover, ByteBuffer buf)
+	 *
+	 * @param   channel The DatagramChannel connected to the TftpClient.
+	 * @param   file    The TftpSource containing the requested file to send.
+	 * @param   options The TftpOptions negotiated for this transfer.
+	 * @param   addr    The InetAddress of the destination.
+	 * @param   port    The int port number to send the packets through.
+	 * @return  True if the file transfer was successful, False otherwise.
+	 * @throws  IOException
+	 */
+	private boolean transfer(DatagramChannel channel, TftpSource file, TftpOptions options, InetAddress addr, int port) throws IOException {
+
+		DatagramSocket socket = channel.socket();	/* Receives with a timeout */
+		TftpRtt rtt = new TftpRtt(options);	/* The wait for each ACK */
+
+		if (!options.getAccepted().isEmpty() && !acknowledge(socket, options, rtt, addr, port)) {
+			return false;
+		}
+
+		DatagramPacket ack = new DatagramPacket(new byte[Tftp.HEADER], Tftp.HEADER);
+
+		/* The packet of the current block, or the view over its frame */
+		int blksize = options.getBlksize();
+		int rollover = config.getRollover();
+		TftpFrames frames = file.getFrames(blksize, rollover);
+		ByteBuffer view = (frames != null) ? frames.view() : null;
+		ByteBuffer packet = (frames != null) ? view : pool.acquire(blksize + Tftp.HEADER);
+		long encoded = -1;	/* The block currently encoded in the packet */
+
+		int windowsize = options.getWindowsize();
+		long total = Tftp.getTotalBlocks(file.size(), blksize);
+		boolean retry = false;	/* True if the window is being resent */
+		int attempts = 0;	/* Resends of the window after a timeout */
+		long block = 0; 	/* The amount of blocks ACK'd, and the index */
+
+		TftpLog.info("\nTransferring " + total + " packets...\n");
+
+		TftpProgress progress = new TftpProgress(addr.getHostAddress() + ":" + port, "Sent", TftpLog.DEBUG);
+		progress.setTotal(total);
+
+		/**
+		 * The following loop will send a window of blocks on each iteration.
+		 *
+		 * This loop will break when TftpServer fails to send a packet too many
+		 * times, or if any exception is thrown throughout the process.
+		 */
+		try {
+			while (attempts <= config.getRetries()) {
+
+				long end = Math.min(block + windowsize, total);
+
+				for (long next = block; next < end; next++) {
+					if (frames != null) {
+						frames.frame(next, view);
+					} else if (encoded != next) {
+						Tftp.dataPacket(file, next, blksize, rollover, packet);
+						encoded = next;
+					} else {
+						packet.rewind();	/* Sends the same block again */
+					}
+					channel.write(packet);		/* Sends block to TftpClient */
+				}
+				rtt.sent(retry);
+
+				long acked;		/* The count of the last block ACK'd */
+				try {
+					acked = receiveAck(socket, ack, block, end, rtt.getTimeout());
+				} catch (SocketTimeoutException e) {
+					if (TftpLog.isEnabled(TftpLog.DEBUG)) {
+						TftpLog.debug("\tTimed out, retrying packet " + block + "...");
+					}
+					rtt.backoff();		/* Waits twice as long for the resend */
+					retry = true;
+					attempts++;
+					continue;
+				}
+
+				if (acked < 0) {
+					return false;	/* The TftpClient sent an ERROR */
+				} else if (acked == total) {
+					progress.update(acked);
+					return true;	/* The short last block was ACK'd */
+				} else {
+					progress.update(acked);
+					rtt.received();
+					block = acked;  /* To send the next window over */
+					retry = false;
+					attempts = 0;
+				}
+			}
+			return false; 	/* Return False for failed to send */
+		} finally {
+			progress.stop();
+			if (frames == null) {
+				pool.release(packet);
+			}
+		}
+	}
+
+
+	/**
+	 * Receives an upload from the TftpClient.
+	 *
+	 * Answers the WRQ with an OACK if options were accepted, or else with an
+	 * ACK of block 0, after which the TftpClient sends the blocks. Each block
+	 * received in order is written straight to its place in the {@link TftpSink},
+	 * so only the current block is ever held in memory, and the packet it is
+	 * received into is reused for every block.
+	 *
+	 * The blocks are ACK'd the same way as by the TftpClient of a download:
+	 * at the end of each window, or once for the first block out of order, so
+	 * that the window is resent from there. A block shorter than the block
+	 * size ends the upload (RFC 1350). The file is then committed, which
+	 * forces it to disk as the fsync policy asks, and only then is the last
+	 * block ACK'd.
+	 *
+	 * If nothing arrives within the timeout of the {@link TftpRtt}, the OACK
+	 * or last ACK is sent again and the timeout is doubled, as many times as
+	 * the retries of the configuration. The 2-byte block numbers are compared
+	 * after rollover, and either convention is accepted at the first rollover,
+	 * the same as the TftpClient does.
+	 *
+	 * @param   channel The DatagramChannel connected to the TftpClient.
+	 * @param   sink    The TftpSink to write the blocks to.
+	 * @param   options The TftpOptions negotiated for this upload.
+	 * @param   addr    The InetAddress of the destination.
+	 * @param   port    The int port number to send the packets through.
+	 * @return  True if the upload was successful, False otherwise.
+	 * @throws  IOException
+	 */
+	private boolean upload(DatagramChannel channel, TftpSink sink, TftpOptions options, InetAddress addr, int port) throws IOException {
+
+		DatagramSocket socket = channel.socket();	/* Receives with a timeout */
+		TftpRtt rtt = new TftpRtt(options);	/* The wait for each block */
+
+		int blksize = options.getBlksize();
+		int windowsize = options.getWindowsize();
+		int rollover = config.getRollover();	/* Detected at the first rollover */
+
+		/* The packet of the current block, and the bytes of the file in it */
+		DatagramPacket pkt = new DatagramPacket(new byte[blksize + Tftp.HEADER], blksize + Tftp.HEADER);
+		ByteBuffer bytes = ByteBuffer.wrap(pkt.getData());
+		ByteBuffer ack = ByteBuffer.allocate(Tftp.HEADER);	/* Reused for every ACK */
+
+		/* The last packet sent, the OACK or ACK 0 at first */
+		ByteBuffer last;
+		if (!options.getAccepted().isEmpty()) {
+			DatagramPacket oack = Tftp.oackPacket(options.getAccepted(), addr, port);
+			last = ByteBuffer.wrap(oack.getData(), 0, oack.getLength());
+		} else {
+			last = ackPacket(ack, 0);
+		}
+
+		long block = 0;		/* The amount of blocks written */
+		int received = 0;	/* Blocks received since the last ACK */
+		int timeouts = 0;	/* Timeouts in a row */
+		boolean gap = false;	/* True once a gap has been ACK'd */
+
+		TftpProgress progress = new TftpProgress(addr.getHostAddress() + ":" + port, "Received", TftpLog.DEBUG);
+		if (options.getTsize() >= 0) {
+			progress.setTotal(Tftp.getTotalBlocks(options.getTsize(), blksize));
+		}
+
+		try {
+			channel.write(last);
+			rtt.sent(false);
+
+			while (true) {
+				socket.setSoTimeout(rtt.getTimeout());	/* Waits about a round trip */
+				try {
+					socket.receive(pkt);
+					timeouts = 0;
+				} catch (SocketTimeoutException e) {
+					if (++timeouts > config.getRetries()) {
+						return false;
+					}
+					if (TftpLog.isEnabled(TftpLog.DEBUG)) {
+						TftpLog.debug("\tTimed out, retrying ACK " + block + "...");
+					}
+					channel.write(last.rewind());	/* Resends the OACK or the last ACK */
+					rtt.backoff();		/* Waits twice as long for the resend */
+					rtt.sent(true);
+					received = 0;
+					continue;
+				}
+
+				byte[] data = pkt.getData();
+				int length = pkt.getLength();
+				int type = (length >= Tftp.OFFSET) ? Tftp.getOpcode(data) : -1;
+
+				if (type == Tftp.ERROR) {
+					return false;	/* The TftpClient gave up */
+				} else if (type != Tftp.DATA || length < Tftp.HEADER) {
+					continue;
+				}
+
+				long next = block + 1;
+				int number = Tftp.getBlock(data);	/* The 2-byte block number */
+				if (next == Tftp.MAX_BLOCK + 1 && number == Tftp.blockNumber(next, 1 - rollover)) {
+					rollover = 1 - rollover;
+				}
+
+				if (number == Tftp.blockNumber(next, rollover)) {
+					bytes.limit(length).position(Tftp.HEADER);
+					sink.write(block, blksize, bytes);
+					block = next;
+					progress.update(block);
+					rtt.received();
+					gap = false;
+					received++;
+
+					if (length - Tftp.HEADER < blksize) {
+						sink.commit();		/* Forced to disk before the last ACK */
+						channel.write(last = ackPacket(ack, Tftp.blockNumber(block, rollover)));
+						dally(channel, socket, pkt, last, rtt.getTimeout() * 2);
+						TftpLog.info("\nTotal " + block + " packets received.\n");
+						return true;
+					} else if (received >= windowsize) {
+						sink.flush();
+						channel.write(last = ackPacket(ack, Tftp.blockNumber(block, rollover)));
+						rtt.sent(false);
+						received = 0;
+					}
+				} else {
+					/* ACK a repeat of the last block, or the first gap */
+					boolean repeat = number == Tftp.blockNumber(block, rollover);
+					if (repeat || !gap) {
+						sink.flush();		/* It ACKs the blocks since the last */
+						channel.write(last = ackPacket(ack, Tftp.blockNumber(block, rollover)));
+						rtt.sent(false);
+						received = 0;
+					}
+					gap = gap || !repeat;
+				}
+			}
+		} finally {
+			progress.stop();
+		}
+	}
+
+
+	/**
+	 * Waits a while after the last ACK of an upload, and sends it again for
+	 * each DATA packet that arrives meanwhile, as the TftpClient resends its
+	 * last window if the ACK was lost (RFC 1350).
+	 *
+	 * @param   channel The DatagramChannel connected to the TftpClient.
+	 * @param   socket  The DatagramSocket of the channel, to receive with.
+	 * @param   pkt     The DatagramPacket to receive into.
+	 * @param   last    The ByteBuffer of the last ACK.
+	 * @param   wait    The int milliseconds to wait in all.
+	 * @throws  IOException
+	 */
+	private void dally(DatagramChannel channel, DatagramSocket socket, DatagramPacket pkt, ByteBuffer last, int wait) throws IOException {
+
+		long deadline = System.nanoTime() + wait * 1000000L;
+
+		try {
+			while (wait > 0) {
+				socket.setSoTimeout(wait);
+				socket.receive(pkt);
+				if (pkt.getLength() >= Tftp.OFFSET && Tftp.getOpcode(pkt.getData()) == Tftp.DATA) {
+					channel.write(last.rewind());
+				}
+				wait = (int) ((deadline - System.nanoTime()) / 1000000);
+			}
+		} catch (SocketTimeoutException e) {
+			/* The TftpClient has its ACK */
+		}
+	}
+
+
+	/**
+	 * Encodes an ACK into the buffer, ready to be written to the channel.
+	 *
+	 * @param   ack     The ByteBuffer with room for a header.
+	 * @param   number  The int block number to acknowledge.
+	 * @return  The same ByteBuffer, from its start to its end.
+	 */
+	private static ByteBuffer ackPacket(ByteBuffer ack, int number) {
+
+		ack.clear();
+		ack.putShort(0, Tftp.ACK);
+		ack.putShort(2, (short) number);
+		return ack;
+	}
+
+
+	/**
+	 * Acknowledges the options that were accepted.
+	 *
+	 * Sends the OACK, then waits for the TftpClient to confirm the options
+	 * with an ACK of block 0, before any DATA is sent. An ERROR from the
+	 * TftpClient means it has declined the options. The OACK is resent after
+	 * each timeout, the same as a window of blocks, and its round trip is the
+	 * first sample of the TftpRtt.
+	 *
+	 * @param   socket  The DatagramSocket the TftpClient is connected to.
+	 * @param   options The TftpOptions negotiated for this transfer.
+	 * @param   rtt     The TftpRtt of this transfer.
+	 * @param   addr    The InetAddress of the destination.
+	 * @param   port    The int port number to send the packets through.
+	 * @return  True if the TftpClient confirmed the options, False otherwise.
+	 * @throws  IOException
+	 */
+	private boolean acknowledge(DatagramSocket socket, TftpOptions options, TftpRtt rtt, InetAddress addr, int port) throws IOException {
+
+		DatagramPacket ack = new DatagramPacket(new byte[Tftp.HEADER], Tftp.HEADER);
+		DatagramPacket oack = Tftp.oackPacket(options.getAccepted(), addr, port);
+
+		int attempts = 0;	/* Resends of the OACK after a timeout */
+
+		while (attempts <= config.getRetries()) {
+
+			socket.send(oack);				/* Sends options to TftpClient */
+			rtt.sent(attempts > 0);
+
+			try {
+				if (receiveAck(socket, ack, 0, 0, rtt.getTimeout()) < 0) {
+					return false;	/* The TftpClient declined the options */
+				}
+				rtt.received();
+				return true;
+			} catch (SocketTimeoutException e) {
+				rtt.backoff();		/* Waits twice as long for the resend */
+				attempts++;
+			}
+		}
+		return false; 	/* Return False for failed to acknowledge */
+	}
+
+
+	/**
+	 * Waits for an ACK of any block after the first up to the last, or of the
+	 * last block itself, which is block 0 for an OACK.
+	 *
+	 * Any other packet is a duplicate, such as the ACK of a window that was
+	 * resent, and is ignored so that it isn't answered twice (RFC 1123). A
+	 * packet shorter than an ACK is ignored as well. The wait is not started
+	 * over by the duplicates.
+	 *
+	 * @param   socket  The DatagramSocket the TftpClient is connected to.
+	 * @param   ack     The DatagramPacket to receive each ACK into.
+	 * @param   block   The long count of the last block ACK'd before.
+	 * @param   end     The long count of the last block that was sent.
+	 * @param   wait    The int milliseconds to wait in all.
+	 * @return  The long count of the block ACK'd, or -1 for an ERROR.
+	 * @throws  SocketTimeoutException if no such ACK arrived in time.
+	 * @throws  IOException
+	 */
+	private long receiveAck(DatagramSocket socket, DatagramPacket ack, long block, long end, int wait) throws IOException {
+
+		long deadline = System.nanoTime() + wait * 1000000L;
+
+		while (true) {
+			socket.setSoTimeout(wait);
+			socket.receive(ack);
+
+			/* A runt would be read over the bytes of the last ACK */
+			byte[] arr = ack.getData();
+			int type = (ack.getLength() >= Tftp.HEADER) ? Tftp.getOpcode(arr) : -1;
+
+			if (type == Tftp.ERROR) {
+				return -1;
+			} else if (type == Tftp.ACK) {
+				int number = Tftp.getBlock(arr);	/* Gets the ACK'd block */
+				long acked = Tftp.getSequence(number, block, config.getRollover());
+
+				if (acked == end || (acked > block && acked < end)) {
+					return acked;
+				}
+			}
+			wait = (int) Math.max((deadline - System.nanoTime()) / 1000000, 1);
+		}
+	}
+}